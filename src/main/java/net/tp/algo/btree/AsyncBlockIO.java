@@ -0,0 +1,187 @@
+package net.tp.algo.btree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+/**
+ * BlockIO which reads blocks of another BlockIO in the background on a small pool of I/O threads.
+ *
+ * {@link #prefetch(int)} starts reading a block which is expected to be read soon; the next {@link #readBlock(int, byte[])}
+ * of that block waits for it instead of reading it again. Up to maxPrefetched blocks are kept; beyond that the
+ * oldest prefetched block is dropped. Writing a block drops its prefetched copy, so a read never returns an older
+ * version of a block than the last write.
+ *
+ * @author Trung Phan
+ *
+ */
+public class AsyncBlockIO implements BlockIO, Closeable {
+
+	public static final int DEFAULT_THREADS = 4;
+	public static final int DEFAULT_MAX_PREFETCHED = 64;
+
+	private final BlockIO blockIO;
+	private final ExecutorService executor;
+	private final int maxPrefetched;
+	private final LinkedHashMap<Integer, CompletableFuture<byte[]>> prefetched = new LinkedHashMap<>();
+
+	private long prefetches;
+	private long prefetchHits;
+
+	public AsyncBlockIO(BlockIO blockIO) {
+		this(blockIO, DEFAULT_THREADS, DEFAULT_MAX_PREFETCHED);
+	}
+
+	/**
+	 *
+	 * @param blockIO
+	 * @param threads number of I/O threads, i.e. the number of reads in flight
+	 * @param maxPrefetched maximum number of prefetched blocks which are not read yet
+	 */
+	public AsyncBlockIO(BlockIO blockIO, int threads, int maxPrefetched) {
+		if (blockIO == null || threads <= 0 || maxPrefetched < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.blockIO = blockIO;
+		this.maxPrefetched = maxPrefetched;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "AsyncBlockIO");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	public int blocksize() {
+		return blockIO.blocksize();
+	}
+
+	/**
+	 * Read block i on an I/O thread.
+	 * @param i
+	 * @return the content of the block
+	 */
+	public CompletableFuture<byte[]> readBlockAsync(final int i) {
+		return CompletableFuture.supplyAsync(new Supplier<byte[]>() {
+			@Override
+			public byte[] get() {
+				byte[] bytes = new byte[blockIO.blocksize()];
+				blockIO.readBlock(i, bytes);
+				return bytes;
+			}
+		}, executor);
+	}
+
+	/**
+	 * Start reading block i unless it is already being prefetched.
+	 * @param i
+	 */
+	public synchronized void prefetch(int i) {
+		if (maxPrefetched == 0 || prefetched.containsKey(i)) {
+			return;
+		}
+		prefetched.put(i, readBlockAsync(i));
+		prefetches++;
+		if (prefetched.size() > maxPrefetched) {
+			Iterator<CompletableFuture<byte[]>> it = prefetched.values().iterator();
+			it.next();
+			it.remove();
+		}
+	}
+
+	@Override
+	public void readBlock(int i, byte[] bytes) {
+		CompletableFuture<byte[]> future;
+		synchronized (this) {
+			future = prefetched.remove(i);
+		}
+
+		if (future != null) {
+			byte[] result;
+			try {
+				result = future.join();
+			} catch (CompletionException e) {
+				result = null; // read it again below, which reports the error
+			}
+			if (result != null) {
+				int len = Math.min(bytes.length, result.length);
+				System.arraycopy(result, 0, bytes, 0, len);
+				Arrays.fill(bytes, len, bytes.length, (byte)0);
+				synchronized (this) {
+					prefetchHits++;
+				}
+				return;
+			}
+		}
+
+		blockIO.readBlock(i, bytes);
+	}
+
+	@Override
+	public void writeBlock(int i, byte[] bytes) {
+		synchronized (this) {
+			prefetched.remove(i);
+		}
+		blockIO.writeBlock(i, bytes);
+	}
+
+	@Override
+	public void flush() {
+		blockIO.flush();
+	}
+
+	@Override
+	public void truncate(int blocks) {
+		synchronized (this) {
+			Iterator<Integer> it = prefetched.keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next() >= blocks) {
+					it.remove();
+				}
+			}
+		}
+		blockIO.truncate(blocks);
+	}
+
+	/**
+	 *
+	 * @return number of blocks prefetched
+	 */
+	public synchronized long prefetches() {
+		return prefetches;
+	}
+
+	/**
+	 *
+	 * @return number of reads served by a prefetched block
+	 */
+	public synchronized long prefetchHits() {
+		return prefetchHits;
+	}
+
+	/**
+	 * Stop the I/O threads, and close the underlying BlockIO if it is Closeable.
+	 */
+	@Override
+	public void close() throws IOException {
+		executor.shutdownNow();
+		synchronized (this) {
+			prefetched.clear();
+		}
+		if (blockIO instanceof Closeable) {
+			((Closeable)blockIO).close();
+		}
+	}
+
+}
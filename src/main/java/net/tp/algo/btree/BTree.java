@@ -2,20 +2,112 @@ package net.tp.algo.btree;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.UnaryOperator;
 
+import junit.framework.Assert;
+
+import net.tp.algo.sort.MergeSort;
 import net.tp.algo.util.NaturalComparator;
 
-public class BTree<K> {
+import org.junit.Test;
+
+public class BTree<K> implements Iterable<K> {
 
+	/**
+	 * Default capacity of the node cache, measured in blocks.
+	 */
+	public static final int DEFAULT_CACHE_BLOCKS = 1024;
+	
+	/**
+	 * Default number of sibling nodes prefetched ahead of a cursor.
+	 */
+	public static final int DEFAULT_READ_AHEAD = 8;
+	
+	/**
+	 * Default number of changed nodes kept in memory before they are written, if the transaction is still open.
+	 */
+	public static final int DEFAULT_MAX_DIRTY_NODES = 1024;
+	
+	/**
+	 * Default fraction of its keys a node keeps when a key beyond its last one splits it.
+	 */
+	public static final double DEFAULT_APPEND_FILL_FACTOR = 0.9;
+	
+	/**
+	 * Minimum number of keys a Bloom filter is sized for.
+	 */
+	private static final int MIN_FILTER_KEYS = 1024;
+	
+	/**
+	 * Number of keys added to the new Bloom filter by each add or delete while a stale filter is rebuilt.
+	 */
+	private static final int FILTER_REBUILD_KEYS = 256;
+	
 	private BlockStore bs;
 	private Serializer<K> keySerializer;
 	private Comparator<? super K> comparator;
 	private BNode<K> root;
+	private final BlockCache<BNode<K>> cache;
+	private boolean pinInnerNodes = true;
+	private int readAhead = DEFAULT_READ_AHEAD;
+	private double appendFillFactor = DEFAULT_APPEND_FILL_FACTOR;
+	
+	/**
+	 * Nodes changed since they were last written, by block address. A node is written once when the changes are committed,
+	 * however many times it changed. They are looked up before the cache, which may have evicted them.
+	 */
+	private final Map<Integer, BNode<K>> dirtyNodes = new LinkedHashMap<>();
+	private boolean metaDataDirty = false;
+	private int maxDirtyNodes = DEFAULT_MAX_DIRTY_NODES;
+	private BloomFilter<K> filter; // null if find reads the tree for every key
+	private BloomFilter<K> rebuiltFilter; // replaces filter once it has all the keys, see rebuildFilterStep
+	private K rebuiltUpTo; // the keys up to this one are in rebuiltFilter, null if none are yet
+	private List<BNode<K>> appendPath; // path to the leaf of the last insert at the end of a leaf, see append
+	
+	private boolean inTransaction = false;
+	private volatile boolean groupCommit = false;
+	private final AtomicInteger pendingWriters = new AtomicInteger();
+	private final AtomicLong appliedSeq = new AtomicLong(); // sequence of the last applied add/delete
+	private long durableSeq; // all changes up to this sequence are committed
+	private long abortedSeq; // all uncommitted changes up to this sequence were rolled back
+	private int modCount; // invalidates cursors
+	
+	/**
+	 * Concurrent writers which only change a leaf hold the latch shared, see {@link #updateLeaf(Object, UnaryOperator, Object[])}.
+	 * Everything else holds the monitor and, once it reads or changes the tree, the latch exclusively, see {@link #exclusive()}.
+	 */
+	private final StampedLock latch = new StampedLock();
+	private long exclusiveStamp; // write stamp of the latch, kept between monitor holders until a leaf writer takes the latch; 0 if not held
+	private volatile boolean draining; // a monitor holder waits for the leaf writers to leave
+	private volatile boolean concurrentWriters = false;
+	private final Queue<int[]> pendingSizes = new ConcurrentLinkedQueue<>(); // subtreeSizes changes of leaf writers: delta, then (block address, child index) of each ancestor
+	private final Map<Integer, BNode<K>> dirtyLeaves = new ConcurrentHashMap<>(); // leaves of leaf writers, moved to dirtyNodes by exclusive()
+	
+	private boolean defragmenting = false; // whether a defragment pass is under way
+	private K defragmentBound; // the leaves of keys up to this separator are laid out
+	private int defragmentPrev; // the last leaf laid out
 	
 	private final int innerOrder;
 	private final int innerLowWaterMark;
@@ -30,7 +122,25 @@ public class BTree<K> {
 	// http://webhdd.ru/library/files/WAFL.pdf
 	// http://www.cs.berkeley.edu/~kamil/teaching/su02/080802.pdf (Threaded Tree)
 	public BTree(BlockIO blockIO, Serializer<K> keySerializer, Comparator<? super K> comparator, int innerOrder, int innerLowWaterMark, int leafOrder, int leafLowWaterMark) {
-		this.bs = new BlockStore(blockIO);
+		this(blockIO, keySerializer, comparator, innerOrder, innerLowWaterMark, leafOrder, leafLowWaterMark, (long)DEFAULT_CACHE_BLOCKS * blockIO.blocksize());
+	}
+	
+	/**
+	 * 
+	 * @param cacheCapacity capacity of the node cache in bytes; 0 disables the cache.
+	 */
+	public BTree(BlockIO blockIO, Serializer<K> keySerializer, Comparator<? super K> comparator, int innerOrder, int innerLowWaterMark, int leafOrder, int leafLowWaterMark, long cacheCapacity) {
+		this(new BlockStore(blockIO), keySerializer, comparator, innerOrder, innerLowWaterMark, leafOrder, leafLowWaterMark, cacheCapacity);
+	}
+	
+	/**
+	 * 
+	 * @param blockStore e.g. a block store with a write-ahead log
+	 * @param cacheCapacity capacity of the node cache in bytes; 0 disables the cache.
+	 */
+	public BTree(BlockStore blockStore, Serializer<K> keySerializer, Comparator<? super K> comparator, int innerOrder, int innerLowWaterMark, int leafOrder, int leafLowWaterMark, long cacheCapacity) {
+		this.bs = blockStore;
+		this.cache = new BlockCache<>(blockStore.blocksize(), cacheCapacity);
 		this.keySerializer = keySerializer;
 		this.comparator = comparator;
 		
@@ -43,10 +153,397 @@ public class BTree<K> {
 		readMetaData();
 	}
 	
-	public int size() {
+	public synchronized int size() {
+		exclusive();
 		return root != null ? root.size() : 0;
 	}
 	
+	public BlockCache<?> cache() {
+		return cache;
+	}
+	
+	BlockStore blockStore() {
+		return bs;
+	}
+	
+	/**
+	 * Pinned inner nodes are never evicted from the cache. The root is always pinned.
+	 * @param pinInnerNodes
+	 */
+	public synchronized void setPinInnerNodes(boolean pinInnerNodes) {
+		exclusive();
+		this.pinInnerNodes = pinInnerNodes;
+		cache.clear();
+		if (root != null) {
+			cacheNode(root);
+		}
+	}
+	
+	/**
+	 * When a cursor or a range scan enters a child of an inner node, the next readAhead children in the scan direction
+	 * are prefetched, which are the next leaves when the node is a parent of leaves. printTree and toString prefetch
+	 * the same way while they read the children of a node. Prefetching only has an effect if the block store is on an {@link AsyncBlockIO}.
+	 * @param readAhead number of nodes; 0 disables read-ahead.
+	 */
+	public void setReadAhead(int readAhead) {
+		if (readAhead < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.readAhead = readAhead;
+	}
+	
+	/**
+	 * When keys are inserted in ascending order, the last node of a parent splits when a key goes beyond its last key.
+	 * It keeps appendFillFactor of its keys instead of half, so that the nodes left behind are not half empty;
+	 * the rest leaves room for keys which arrive a little out of order.
+	 * @param appendFillFactor in [0.5, 1]; 1 moves only the last key to the new node
+	 */
+	public synchronized void setAppendFillFactor(double appendFillFactor) {
+		if (!(appendFillFactor >= 0.5 && appendFillFactor <= 1)) {
+			throw new IllegalArgumentException("Invalid fill factor: " + appendFillFactor);
+		}
+		this.appendFillFactor = appendFillFactor;
+	}
+	
+	/**
+	 * A transaction which changes more than maxDirtyNodes nodes writes them before it commits, to bound memory use.
+	 * They are written again at commit if they change once more.
+	 * @param maxDirtyNodes
+	 */
+	public synchronized void setMaxDirtyNodes(int maxDirtyNodes) {
+		if (maxDirtyNodes <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxDirtyNodes = maxDirtyNodes;
+	}
+	
+	/**
+	 * Prefetch the children of u from index from (inclusive) to index to (exclusive), in that order; to may be less than from.
+	 */
+	private void prefetchChildren(BNode<K> u, int from, int to) {
+		if (u.isLeaf) {
+			return;
+		}
+		int step = from <= to ? 1 : -1;
+		for (int i = from; i != to && i >= 0 && i <= u.last; i += step) {
+			if (!cache.contains(u.children[i]) && !dirtyNodes.containsKey(u.children[i])) {
+				bs.prefetch(u.children[i]);
+			}
+		}
+	}
+	
+	private BNode<K> loadNode(int blockAddr) {
+		return peekNode(blockAddr).decode();
+	}
+	
+	/**
+	 * Like {@link #loadNode(int)}, but a node read from disk is not decoded, see {@link BNode#search(Object)}.
+	 * Only for read-only traversals.
+	 * @param blockAddr
+	 * @return
+	 */
+	private BNode<K> peekNode(int blockAddr) {
+		BNode<K> u = dirtyNodes.get(blockAddr);
+		if (u != null) {
+			return u;
+		}
+		u = cache.get(blockAddr);
+		if (u == null) {
+			u = new BNode<K>(this, blockAddr);
+			cacheNode(u);
+		}
+		return u;
+	}
+	
+	/**
+	 * Return the buffer of an undecoded node which the cache did not keep, since nothing else refers to the node.
+	 */
+	private void releaseUncached(BNode<K> u) {
+		if (u.raw != null && !cache.contains(u.blockAddr)) {
+			bs.bufferPool().release(u.raw);
+			u.raw = null;
+		}
+	}
+	
+	private void cacheNode(BNode<K> u) {
+		cache.put(u.blockAddr, u, u == root || (pinInnerNodes && !u.isLeaf));
+	}
+	
+	/**
+	 * Start a transaction. Until {@link #commit()} or {@link #rollback()}, add and delete are applied
+	 * without committing the block store. Transactions are tree-wide: changes made by other threads in the meantime
+	 * are committed or rolled back together with it. A failed add or delete rolls back and ends the transaction.
+	 * Changes made before, whose writers still wait for a group commit, are committed first.
+	 */
+	public synchronized void begin() {
+		exclusive();
+		if (inTransaction) {
+			throw new IllegalStateException("Transaction already started.");
+		}
+		if (appliedSeq.get() > Math.max(durableSeq, abortedSeq)) {
+			commitChanges();
+		}
+		inTransaction = true;
+	}
+	
+	public synchronized void commit() {
+		exclusive();
+		if (!inTransaction) {
+			throw new IllegalStateException("No transaction.");
+		}
+		inTransaction = false;
+		commitChanges();
+	}
+	
+	public synchronized void rollback() {
+		exclusive();
+		if (!inTransaction) {
+			throw new IllegalStateException("No transaction.");
+		}
+		abort();
+	}
+	
+	public synchronized boolean inTransaction() {
+		return inTransaction;
+	}
+	
+	/**
+	 * In group commit mode, add and delete outside a transaction still return only after their change is committed,
+	 * but concurrent callers share one metadata write and one flush of the block store.
+	 * @param groupCommit
+	 */
+	public synchronized void setGroupCommit(boolean groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+	
+	/**
+	 * In concurrent mode, an add or delete which changes a single leaf, without splitting, merging or rotating it,
+	 * runs in parallel with the others: it descends without restructuring and only latches the leaf. The counts of
+	 * keys in the inner nodes are brought up to date by the next operation which locks the tree. Other adds and deletes,
+	 * and all other operations, lock the whole tree as before. Each change outside a transaction is still committed,
+	 * so concurrent writers are best combined with a transaction or with group commit.
+	 * @param concurrentWriters
+	 */
+	public void setConcurrentWriters(boolean concurrentWriters) {
+		this.concurrentWriters = concurrentWriters;
+	}
+	
+	/**
+	 * Keep a Bloom filter of the keys in the block store, so that find returns null for most absent keys without
+	 * reading the tree. The filter is sized for twice the keys in the tree. Once it is stale, after about as many
+	 * changes as there are keys, each following add or delete adds a few keys to a new filter, which replaces it when
+	 * it has them all. It is committed like add and delete.
+	 * Keys which are equal by the comparator must serialize to the same bytes.
+	 * @param bitsPerKey bits of the filter per key, e.g. 10 for about 1% of false positives; 0 to drop the filter
+	 */
+	public synchronized void setBloomFilter(int bitsPerKey) {
+		exclusive();
+		if (bitsPerKey < 0) {
+			throw new IllegalArgumentException("Invalid bits per key: " + bitsPerKey);
+		}
+		try {
+			rebuildFilter(bitsPerKey);
+		} catch (RuntimeException e) {
+			abort();
+			throw e;
+		}
+		autoCommit();
+	}
+	
+	/**
+	 * Replace the filter with one of all the keys in the tree, or drop it if bitsPerKey is 0.
+	 */
+	private void rebuildFilter(int bitsPerKey) {
+		BloomFilter<K> old = filter;
+		filter = null;
+		rebuiltFilter = null;
+		if (bitsPerKey > 0) {
+			int size = root != null ? root.size() : 0;
+			BloomFilter<K> f = new BloomFilter<>(bs, keySerializer, bitsPerKey, 2 * Math.max(size, MIN_FILTER_KEYS));
+			if (root != null) {
+				addKeys(root, f);
+			}
+			filter = f;
+		}
+		if (old != null) {
+			old.free();
+		}
+		metaDataDirty = true;
+	}
+	
+	private void addKeys(BNode<K> u, BloomFilter<K> f) {
+		for (int i = 0; i < u.keysSize(); i++) {
+			f.add(u.keyAt(i));
+		}
+		if (!u.isLeaf) {
+			for (int i = 0; i <= u.keysSize(); i++) {
+				BNode<K> child = peekNode(u.childAt(i));
+				addKeys(child, f);
+				releaseUncached(child);
+			}
+		}
+	}
+	
+	/**
+	 * Add the next FILTER_REBUILD_KEYS keys of the tree to the filter replacing a stale one, starting it if needed,
+	 * so that no single add or delete reads the whole tree. The keys added to the tree meanwhile go to both filters.
+	 */
+	private void rebuildFilterStep() {
+		if (rebuiltFilter == null) {
+			if (!filter.stale()) {
+				return;
+			}
+			int size = root != null ? root.size() : 0;
+			rebuiltFilter = new BloomFilter<>(bs, keySerializer, filter.bitsPerKey(), 2 * Math.max(size, MIN_FILTER_KEYS));
+			rebuiltUpTo = null;
+		}
+		
+		Cursor cursor = new Cursor(null);
+		K key = rebuiltUpTo == null ? cursor.first() : cursor.higher(rebuiltUpTo);
+		for (int n = 0; key != null && n < FILTER_REBUILD_KEYS; n++) {
+			rebuiltFilter.add(key);
+			rebuiltUpTo = key;
+			key = cursor.next();
+		}
+		if (key == null) {
+			filter.free();
+			filter = rebuiltFilter;
+			rebuiltFilter = null;
+			rebuiltUpTo = null;
+			metaDataDirty = true;
+		}
+	}
+	
+	private void markDirty(BNode<K> u) {
+		dirtyNodes.put(u.blockAddr, u);
+		if (dirtyNodes.size() > maxDirtyNodes) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Write the changed nodes and metadata to the block store.
+	 */
+	private void flush() {
+		for (BNode<K> u : dirtyNodes.values()) {
+			u.write();
+		}
+		dirtyNodes.clear();
+		if (filter != null) {
+			filter.flush();
+		}
+		if (metaDataDirty) {
+			writeMetaData();
+			metaDataDirty = false;
+		}
+	}
+	
+	private void commitChanges() {
+		flush();
+		bs.commit();
+		durableSeq = appliedSeq.get();
+		notifyAll();
+	}
+	
+	/**
+	 * Discard uncommitted changes. Cached nodes may hold uncommitted state, so the cache is dropped as well.
+	 */
+	private void abort() {
+		modCount++;
+		inTransaction = false;
+		abortedSeq = appliedSeq.get();
+		dirtyNodes.clear();
+		metaDataDirty = false;
+		rebuiltFilter = null;
+		rebuiltUpTo = null;
+		bs.rollback();
+		cache.clear();
+		root = null;
+		readMetaData();
+		notifyAll();
+	}
+	
+	/**
+	 * Called after each add/delete while holding the lock.
+	 */
+	private void autoCommit() {
+		long seq = appliedSeq.incrementAndGet();
+		notifyAll();
+		if (!inTransaction) {
+			awaitDurable(seq);
+		}
+	}
+	
+	/**
+	 * Return once the change with sequence seq is committed, committing it if no one else does. Called while holding the lock.
+	 * It is never committed while a transaction is open, which would commit the transaction halfway.
+	 */
+	private void awaitDurable(long seq) {
+		while (durableSeq < seq) {
+			if (seq <= abortedSeq) {
+				throw new IllegalStateException("Change is rolled back by a failed operation in the same commit group.");
+			}
+			if (inTransaction || groupCommit && pendingWriters.get() > 0) {
+				// let queued writers apply their changes first so that they join this commit, or let the transaction end
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+				exclusive(); // leaf writers may have taken the latch meanwhile
+			}
+			else {
+				commitChanges();
+			}
+		}
+	}
+	
+	/**
+	 * Called while holding the monitor, before the tree is read or changed: wait for the leaf writers to leave, move the
+	 * leaves they changed to dirtyNodes and the cache, and apply the changes they queued to the counts of the inner nodes. The latch is kept when the monitor is released, so that
+	 * a run of locked operations takes it once; a leaf writer takes it back, see {@link #shared()}.
+	 */
+	private void exclusive() {
+		if (exclusiveStamp == 0) {
+			draining = true;
+			exclusiveStamp = latch.writeLock();
+			draining = false;
+			if (!dirtyLeaves.isEmpty()) {
+				modCount++;
+				for (BNode<K> u : dirtyLeaves.values()) {
+					u.persist();
+				}
+				dirtyLeaves.clear();
+			}
+			for (int[] change = pendingSizes.poll(); change != null; change = pendingSizes.poll()) {
+				for (int i = 1; i < change.length; i += 2) {
+					BNode<K> p = change[i] == root.blockAddr ? root : loadNode(change[i]); // the root is not cached if the cache is disabled
+					p.subtreeSizes[change[i + 1]] += change[0];
+					p.persist();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Hold the latch shared, taking it from the monitor holders if needed. Must not be called while holding the monitor.
+	 * @return stamp to unlock
+	 */
+	private long shared() {
+		long stamp = draining ? 0 : latch.tryReadLock();
+		if (stamp == 0) {
+			synchronized (this) {
+				if (exclusiveStamp != 0) {
+					latch.unlockWrite(exclusiveStamp);
+					exclusiveStamp = 0;
+				}
+				stamp = latch.readLock(); // no one else can wait for the write lock while we hold the monitor
+			}
+		}
+		return stamp;
+	}
+	
 	private void readMetaData() {
 		
 		byte[] buf = new byte[bs.blocksize()];
@@ -65,74 +562,380 @@ public class BTree<K> {
 		ByteBuffer bb = ByteBuffer.wrap(buf);
 		int ri = bb.getInt(); // rootIndex;
 		if (ri > 0) {
-			root = new BNode<K>(this, ri);
+			root = new BNode<K>(this, ri).decode();
+			cacheNode(root);
+		}
+		int fi = bb.getInt(); // first block of the Bloom filter
+		if (fi > 0) {
+			int bitsPerKey = bb.getInt();
+			int capacity = bb.getInt();
+			int size = root != null ? root.size() : 0;
+			filter = new BloomFilter<>(bs, keySerializer, bitsPerKey, capacity, fi, Math.max(0, size - capacity / 2)); // deletes are not counted
+		}
+		else {
+			filter = null;
 		}
 	}
 	
 	private void writeMetaData() {
-		byte[] buf = new byte[bs.blocksize()];
-		ByteBuffer bb = ByteBuffer.wrap(buf);
-		bb.putInt(root != null ? root.blockAddr : 0);
-		bs.writeBlock(1, buf);
+		ByteBuffer bb = bs.bufferPool().acquire();
+		try {
+			Arrays.fill(bb.array(), (byte)0);
+			bb.putInt(root != null ? root.blockAddr : 0);
+			if (filter != null) {
+				bb.putInt(filter.firstBlock());
+				bb.putInt(filter.bitsPerKey());
+				bb.putInt(filter.capacity());
+			}
+			bs.writeBlock(1, bb.array());
+		}
+		finally {
+			bs.bufferPool().release(bb);
+		}
+	}
+	
+	
+	public boolean add(final K key) {
+		return update(key, new UnaryOperator<K>() {
+			@Override
+			public K apply(K existing) {
+				return existing != null ? existing : key;
+			}
+		}, false) == null;
 	}
 	
+	public boolean delete(K key) {
+		return update(key, new UnaryOperator<K>() {
+			@Override
+			public K apply(K existing) {
+				return null;
+			}
+		}, true) != null;
+	}
 	
-	public boolean add(K key) {
+	/**
+	 * Insert, replace or remove the key equal to key, in a single locked operation which is committed like add and delete.
+	 * The tree is descended once, restructured on the way down either for an insert or for a removal.
+	 * Only the other outcome takes a second descent.
+	 * 
+	 * @param key
+	 * @param remapping called once with the key in the tree equal to key, or null. It returns the key to store,
+	 * which must be equal to key, or null to remove it. Returning the argument leaves the tree unchanged.
+	 * @param expectRemoval whether to descend as for a removal
+	 * @return the key which was in the tree, or null
+	 * @see #setConcurrentWriters(boolean)
+	 */
+	@SuppressWarnings("unchecked")
+	K update(K key, UnaryOperator<K> remapping, boolean expectRemoval) {
+		pendingWriters.incrementAndGet();
+		if (concurrentWriters && !Thread.holdsLock(this)) {
+			Object[] existing = new Object[1];
+			long seq;
+			try {
+				seq = updateLeaf(key, remapping, existing);
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					pendingWriters.decrementAndGet();
+					exclusive();
+					abort();
+				}
+				throw e;
+			}
+			if (seq > 0) {
+				synchronized (this) {
+					pendingWriters.decrementAndGet();
+					exclusive();
+					awaitDurable(seq);
+				}
+				return (K)existing[0];
+			}
+			if (seq == 0) {
+				if (pendingWriters.decrementAndGet() == 0 && groupCommit) {
+					synchronized (this) {
+						notifyAll(); // a committer may wait for this writer
+					}
+				}
+				return (K)existing[0];
+			}
+		}
 		
-		if (root == null) {
-			root = new BNode<>(this, true); // create a leaf node for root
-			root.insertKey(0, key);
-			root.persistNew();
-			writeMetaData();
-			bs.commit();
-			return true;
+		synchronized (this) {
+			pendingWriters.decrementAndGet();
+			exclusive();
+			modCount++;
+			K result;
+			try {
+				result = expectRemoval ? remove(key, remapping) : insert(key, remapping);
+				if (filter != null) {
+					rebuildFilterStep();
+				}
+			} catch (RuntimeException e) {
+				abort();
+				throw e;
+			}
+			autoCommit();
+			return result;
 		}
-		else {
-			// using top down methodology
-			
+	}
+	
+	/**
+	 * Apply the update while holding the latch shared, if it only changes the leaf of the key. The descent does not
+	 * restructure, so it gives up if the key is in an inner node, or if the leaf is full and the key is not in it, or if
+	 * the leaf is low and the key is in it, before the remapping is called. No inner node, nor dirtyNodes or the cache,
+	 * changes while the latch is held shared, so the descent reads them without locking, see {@link #sharedNode(int)}.
+	 * The leaf is latched by its monitor and registered in dirtyLeaves from then on, so that it is the node which every
+	 * other writer finds. The change to the counts of its ancestors is queued in pendingSizes.
+	 * @param existing receives the key which was in the tree, or null
+	 * @return the sequence of the change to commit, 0 if there is none, or -1 if the update needs the lock
+	 */
+	private long updateLeaf(K key, UnaryOperator<K> remapping, Object[] existing) {
+		long stamp = shared();
+		try {
 			BNode<K> u = root;
-			BNode<K> parent = null;
-			while (true) {
-				
+			if (u == null || u.isLeaf) {
+				return -1;
+			}
+			
+			int[] change = new int[17];
+			int n = 1;
+			while (!u.isLeaf) {
 				int pos = Arrays.binarySearch(u.keys, 0, u.last, key, this.comparator);
 				if (pos >= 0) {
-					bs.commit(); // there might be some update before
-					return false; // key already exist
+					return -1;
 				}
-
-				if (u.full()) {
-					u = handleOverflow(u, parent, key);
-					// update pos as elements would have changed.
-					// pos will not be >= 0 because it's checked before that key does not belong to u
-					pos = Arrays.binarySearch(u.keys, 0, u.last, key, this.comparator);
+				if (n == change.length) {
+					change = Arrays.copyOf(change, n * 2 - 1);
 				}
-				
-				pos = -1 - pos; // pos now becomes the insertion point
-				
-				if (u.isLeaf) {
-					u.insertKey(pos, key);
-					u.persist();
-					bs.commit();
-					return true;
+				change[n++] = u.blockAddr;
+				change[n++] = -1 - pos;
+				u = sharedNode(u.children[-1 - pos]);
+				if (u == null) {
+					return -1;
 				}
-				else {
-					parent = u;
-					u = u.getChild(pos);
+			}
+			
+			while (true) {
+				synchronized (u) {
+					BNode<K> current = dirtyLeaves.putIfAbsent(u.blockAddr, u);
+					if (current != null && current != u) {
+						u = current; // another writer registered its copy first
+						continue;
+					}
+					
+					int pos = Arrays.binarySearch(u.keys, 0, u.last, key, this.comparator);
+					K found = pos >= 0 ? u.keys[pos] : null;
+					boolean inPlace = pos >= 0 ? !u.low() : !u.full(); // whichever the remapping returns
+					K newKey = inPlace ? remap(key, found, remapping) : found;
+					if (newKey == found) {
+						if (current == null) {
+							dirtyLeaves.remove(u.blockAddr, u); // unchanged; a writer waiting for u registers it again
+						}
+						if (!inPlace) {
+							return -1;
+						}
+						existing[0] = found;
+						return 0;
+					}
+					
+					if (found == null) {
+						u.insertKey(-1 - pos, newKey);
+						change[0] = 1;
+					}
+					else if (newKey == null) {
+						u.deleteKey(pos, true);
+						change[0] = -1;
+					}
+					else {
+						u.keys[pos] = newKey;
+					}
+					if (change[0] != 0) {
+						pendingSizes.add(Arrays.copyOf(change, n));
+					}
+					existing[0] = found;
+					long seq = appliedSeq.incrementAndGet();
+					return inTransaction ? 0 : seq;
 				}
 			}
 		}
+		finally {
+			latch.unlockRead(stamp);
+		}
 	}
 	
-	public boolean delete(K key) {
-		if (root == null) {
-			return false;
+	/**
+	 * Look up a node for {@link #updateLeaf(Object, UnaryOperator, Object[])}. Only the leaves in dirtyLeaves change
+	 * while the latch is held shared, so dirtyNodes and the cache are read as they are. A node which is not in them is
+	 * read from the block store, and cached once the latch is held exclusively, if it is changed.
+	 * @return the node, or null if it is cached undecoded: only the holder of the latch decodes a shared node
+	 */
+	private BNode<K> sharedNode(int blockAddr) {
+		BNode<K> u = dirtyLeaves.get(blockAddr);
+		if (u == null) {
+			u = dirtyNodes.get(blockAddr);
+		}
+		if (u == null) {
+			u = cache.peek(blockAddr);
+		}
+		if (u == null) {
+			return new BNode<K>(this, blockAddr).decode();
+		}
+		return u.raw == null ? u : null;
+	}
+	
+	private K remap(K key, K existing, UnaryOperator<K> remapping) {
+		K result = remapping.apply(existing);
+		if (result != null && result != existing && this.comparator.compare(result, key) != 0) {
+			throw new IllegalArgumentException("Remapped key is not equal to " + key);
+		}
+		if (filter != null && (existing == null) != (result == null)) {
+			BloomFilter<K> rebuilt = rebuiltFilter;
+			if (result != null) {
+				filter.add(result);
+				if (rebuilt != null) {
+					rebuilt.add(result);
+				}
+			}
+			filter.change();
+			if (rebuilt != null) {
+				rebuilt.change();
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * For the second descent, when the remapping was already applied during the first one.
+	 */
+	private static <K> UnaryOperator<K> remapped(final K newKey) {
+		return new UnaryOperator<K>() {
+			@Override
+			public K apply(K existing) {
+				return newKey;
+			}
+		};
+	}
+	
+	private K insert(K key, UnaryOperator<K> remapping) {
+		
+		if (append(key, remapping)) {
+			return null;
+		}
+		
+		if (root == null) {
+			K newKey = remap(key, null, remapping);
+			if (newKey != null) {
+				root = new BNode<>(this, true); // create a leaf node for root
+				root.insertKey(0, newKey);
+				root.persistNew();
+				metaDataDirty = true;
+			}
+			return null;
+		}
+		else {
+			// using top down methodology
+			
+			BNode<K> u = root;
+			BNode<K> parent = null;
+			List<BNode<K>> path = new ArrayList<>();
+			while (true) {
+				
+				int pos = Arrays.binarySearch(u.keys, 0, u.last, key, this.comparator);
+				if (pos >= 0) {
+					// key already exist; there might be some update before
+					K existing = u.keys[pos];
+					K newKey = remap(key, existing, remapping);
+					if (newKey == null) {
+						remove(key, BTree.<K>remapped(null));
+					}
+					else if (newKey != existing) {
+						u.keys[pos] = newKey;
+						u.persist();
+					}
+					return existing;
+				}
+
+				if (u.full()) {
+					BNode<K> oldRoot = root;
+					u = handleOverflow(u, parent, key);
+					if (root != oldRoot) {
+						path.add(root);
+					}
+					// update pos as elements would have changed.
+					// pos will not be >= 0 because it's checked before that key does not belong to u
+					pos = Arrays.binarySearch(u.keys, 0, u.last, key, this.comparator);
+				}
+				
+				pos = -1 - pos; // pos now becomes the insertion point
+				
+				path.add(u);
+				if (u.isLeaf) {
+					K newKey = remap(key, null, remapping);
+					if (newKey != null) {
+						u.insertKey(pos, newKey);
+						u.persist();
+						updateSubtreeSizes(path);
+						if (pos == u.last - 1) {
+							appendPath = path;
+						}
+					}
+					return null;
+				}
+				else {
+					parent = u;
+					u = u.getChild(pos);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Insert a key greater than all the keys in the tree without descending: the path of the last insert at the end of
+	 * a leaf is reused if it still leads to the last leaf, and the leaf has room. Each node of the path must still be the
+	 * one the tree holds, in dirtyNodes or the cache, so that a node read again after eviction is not missed.
+	 * @return whether the key was inserted, or the remapping declined to
+	 */
+	private boolean append(K key, UnaryOperator<K> remapping) {
+		List<BNode<K>> path = appendPath;
+		if (path == null || path.get(0) != root) {
+			return false;
+		}
+		for (int i = 1; i < path.size(); i++) {
+			BNode<K> u = path.get(i);
+			BNode<K> current = dirtyNodes.get(u.blockAddr);
+			if (current == null && cache.contains(u.blockAddr)) {
+				current = cache.get(u.blockAddr);
+			}
+			BNode<K> parent = path.get(i - 1);
+			if (current != u || parent.children[parent.last] != u.blockAddr) {
+				return false;
+			}
+		}
+		BNode<K> leaf = path.get(path.size() - 1);
+		if (!leaf.isLeaf || leaf.full() || leaf.last == 0 || comparator.compare(key, leaf.keys[leaf.last - 1]) <= 0) {
+			return false;
+		}
+		
+		K newKey = remap(key, null, remapping);
+		if (newKey != null) {
+			leaf.insertKey(leaf.last, newKey);
+			leaf.persist();
+			updateSubtreeSizes(path);
+		}
+		return true;
+	}
+	
+	private K remove(K key, UnaryOperator<K> remapping) {
+		if (root == null) {
+			return insert(key, remapping);
 		}
 
 		BNode<K> u = root;
 		BNode<K> parent = null;
 		BNode<K> found = null;
+		K removed = null;
 		int foundPos = 0;
 		int pos = 0;
+		List<BNode<K>> path = new ArrayList<>();
 		
 		while (true) {
 			if (u.low() || (u == root && u.keysSize() == 1)) {
@@ -141,6 +944,19 @@ public class BTree<K> {
 			
 			pos = Arrays.binarySearch(u.keys, 0, u.last, key, this.comparator);
 			if (pos >= 0) {
+				if (found == null) {
+					removed = u.keys[pos];
+					K newKey = remap(key, removed, remapping);
+					if (newKey != null) {
+						if (newKey != removed) {
+							u.keys[pos] = newKey;
+							u.persist();
+						}
+						return removed;
+					}
+				}
+				// else the key was rotated down from found
+				
 				found = u;
 				foundPos = pos;
 				if (!u.isLeaf) {
@@ -156,8 +972,8 @@ public class BTree<K> {
 			
 			if (u.isLeaf) {
 				if (found == null) {
-					bs.commit();
-					return false;
+					K newKey = remap(key, null, remapping);
+					return newKey == null ? null : insert(key, BTree.<K>remapped(newKey));
 				}
 				else {
 					if (found != u) {
@@ -167,14 +983,16 @@ public class BTree<K> {
 					
 					u.deleteKey(pos, true);
 					u.persist();
+					path.add(u);
+					updateSubtreeSizes(path);
 					if (found == root || u == root) {
-						writeMetaData();
+						metaDataDirty = true;
 					}
-					bs.commit();
-					return true;
+					return removed;
 				}
 			}
 		
+			path.add(u);
 			parent = u;
 			u = u.getChild(pos);
 			
@@ -182,6 +1000,20 @@ public class BTree<K> {
 
 	}
 	
+	/**
+	 * Restructuring keeps subtreeSizes exact, but does not know whether a key is eventually added or removed.
+	 * Once it is, recompute the counts along the path it went through, bottom up.
+	 * @param path from the root to the leaf
+	 */
+	private void updateSubtreeSizes(List<BNode<K>> path) {
+		for (int i = path.size() - 2; i >= 0; i--) {
+			BNode<K> p = path.get(i);
+			BNode<K> c = path.get(i + 1);
+			p.subtreeSizes[p.indexOfChild(c.blockAddr)] = c.size();
+			p.persist();
+		}
+	}
+	
 	private BNode<K> handleUnderflow(BNode<K> u, BNode<K> parent, K key) {
 		
 		BNode<K> leftChild = null;
@@ -197,248 +1029,1200 @@ public class BTree<K> {
 					leftChild.delete();
 					rightChild.delete();
 					root.persist();
-					writeMetaData();
+					metaDataDirty = true;
+				}
+			}
+			
+			return u;
+		}
+		
+		int pos = Arrays.binarySearch(parent.keys, 0, parent.last, key, comparator);
+		int leftPos = pos >= 0 ? pos : -1 - pos -1;
+		int rightPos = pos >= 0 ? pos + 2 : -1 -pos + 1;
+		if (pos < 0) {
+			pos = -1 - pos;
+		}
+		
+		if (leftPos >= 0) {
+			leftChild = parent.getChild(leftPos);
+			if (!leftChild.low()) {
+				rotateRight(parent, leftChild, u, leftPos);
+				leftChild.persist();
+				u.persist();
+				parent.persist();
+				if (parent == root) {
+					metaDataDirty = true;
+				}
+				return u;
+			}
+			
+		}
+		
+		if (rightPos <= parent.last) {
+			rightChild = parent.getChild(rightPos);
+			if (!rightChild.low()) {
+				rotateLeft(parent, u, rightChild, rightPos - 1);
+				rightChild.persist();
+				u.persist();
+				parent.persist();
+				if (parent == root) {
+					metaDataDirty = true;
+				}
+				return u;
+			}
+		}
+		
+		if (leftChild != null) {
+			merge(parent, leftChild, u, leftPos, 2);
+			leftChild.delete();
+			u.persist();
+			parent.persist();
+			if (parent == root) {
+				metaDataDirty = true;
+			}
+		}
+		else {
+			merge(parent, u, rightChild, rightPos - 1, 1);
+			rightChild.delete();
+			u.persist();
+			parent.persist();
+			if (parent == root) {
+				metaDataDirty = true;
+			}
+		}
+		
+		return u;
+	}
+	
+	private static <K> void rotateRight(BNode<K> parent, BNode<K> left, BNode<K> right, int pos) {
+		right.insertKey(0, parent.keys[pos]);
+		if (!right.isLeaf) {
+			right.children[0] = left.children[left.last];
+			right.subtreeSizes[0] = left.subtreeSizes[left.last];
+		}
+		parent.keys[pos] = left.keys[left.last-1];
+		left.deleteKey(left.last - 1, false);
+		parent.subtreeSizes[pos] = left.size();
+		parent.subtreeSizes[pos + 1] = right.size();
+	}
+	
+	private static <K> void rotateLeft(BNode<K> parent, BNode<K> left, BNode<K> right, int pos) {
+		left.insertKey(left.last, parent.keys[pos]);
+		if (!left.isLeaf) {
+			left.children[left.last] = right.children[0];
+			left.subtreeSizes[left.last] = right.subtreeSizes[0];			
+		}
+		parent.keys[pos] = right.keys[0];
+		right.deleteKey(0, true);
+		parent.subtreeSizes[pos] = left.size();
+		parent.subtreeSizes[pos + 1] = right.size();
+	}
+	
+	/**
+	 * Keep right child, merge the left child to right child
+	 * @param parent
+	 * @param left
+	 * @param right
+	 * @param pos
+	 * @param opts 0: keep root, 1: keep left, 2: keep right
+	 */
+	private static <K> void merge(BNode<K> parent, BNode<K> left, BNode<K> right, int pos, int opts) {
+		int newLast = left.last + 1 + right.last;
+		K[] newKeys = Arrays.copyOf(left.keys, left.keys.length);
+		int[] newChildren = left.isLeaf ? null : Arrays.copyOf(left.children, left.children.length);
+		int[] newSubtreeSizes = left.isLeaf ? null : Arrays.copyOf(left.subtreeSizes, left.subtreeSizes.length);
+		
+		newKeys[left.last] = parent.keys[pos];
+		System.arraycopy(right.keys, 0, newKeys, left.last + 1, right.last);
+		if (!left.isLeaf) {
+			System.arraycopy(right.children, 0, newChildren, left.last + 1, right.last + 1);
+			System.arraycopy(right.subtreeSizes, 0, newSubtreeSizes, left.last + 1, right.last + 1);
+		}
+		
+		switch (opts) {
+		case 1: // keep left
+			parent.deleteKey(pos, false);
+			left.keys = newKeys;
+			left.children = newChildren;
+			left.subtreeSizes = newSubtreeSizes;
+			left.last = newLast;
+			parent.subtreeSizes[pos] = left.size();
+			break;
+		case 2: // keep right
+			parent.deleteKey(pos, true);
+			right.keys = newKeys;
+			right.children = newChildren;
+			right.subtreeSizes = newSubtreeSizes;
+			right.last = newLast;
+			parent.subtreeSizes[pos] = right.size();
+			break;
+		default: // keep parent
+			parent.keys = newKeys;
+			parent.isLeaf = left.isLeaf;
+			parent.children = newChildren;
+			parent.subtreeSizes = newSubtreeSizes;
+			parent.last = newLast;
+			break;
+		}
+		
+	}
+
+	private BNode<K> handleOverflow(BNode<K> u, BNode<K> parent, K searchKey) {
+		
+		// keys appended to the last child of parent fill a new node: moving them to the left sibling one by one costs
+		// a rotation per insert
+		boolean append = comparator.compare(searchKey, u.keys[u.last - 1]) > 0 && (parent == null || parent.children[parent.last] == u.blockAddr);
+		if (parent != null && !append) {
+			BNode<K> leftChild = null;
+			BNode<K> rightChild = null;
+			
+			int pos = Arrays.binarySearch(parent.keys, 0, parent.last, searchKey, comparator);
+			int leftPos = pos >= 0 ? pos : -1 - pos -1;
+			int rightPos = pos >= 0 ? pos + 2 : -1 -pos + 1;
+			if (pos < 0) {
+				pos = -1 - pos;
+			}
+			
+			if (leftPos >= 0) {
+				leftChild = parent.getChild(leftPos);
+				// u.keys[0] moves up as the new separator, so searchKey may end up in the left sibling
+				boolean toLeft = comparator.compare(searchKey, u.keys[0]) < 0;
+				if (leftChild.last < leftChild.keys.length - (toLeft ? 1 : 0)) {
+					rotateLeft(parent, leftChild, u, leftPos);
+					leftChild.persist();
+					u.persist();
+					parent.persist();
+					if (parent == root) {
+						metaDataDirty = true;
+					}
+					return toLeft ? leftChild : u;
+				}
+				
+			}
+			
+			if (rightPos <= parent.last) {
+				rightChild = parent.getChild(rightPos);
+				boolean toRight = comparator.compare(searchKey, u.keys[u.last - 1]) > 0;
+				if (rightChild.last < rightChild.keys.length - (toRight ? 1 : 0)) {
+					rotateRight(parent, u, rightChild, rightPos - 1);
+					rightChild.persist();
+					u.persist();
+					parent.persist();
+					if (parent == root) {
+						metaDataDirty = true;
+					}
+					return toRight ? rightChild : u;
+				}
+			}
+			
+		}
+		
+		return split(u, parent, searchKey, append);
+	}
+
+	/**
+	 * 
+	 * @param append whether searchKey is greater than the keys of u, see {@link #setAppendFillFactor(double)}
+	 */
+	private BNode<K> split(BNode<K> u, BNode<K> parent, K searchKey, boolean append) {
+		
+		int searchPos = Arrays.binarySearch(u.keys, 0, u.last, searchKey, comparator);
+		if (searchPos < 0) {
+			searchPos = -1 - searchPos;
+		}
+		
+		int mid = (u.last - 1) / 2;
+		if (append) {
+			mid = Math.max(mid, Math.min(u.last - 2, (int)Math.round(u.last * appendFillFactor))); // the new node gets a key at least
+		}
+		K kmid = u.keys[mid];
+		BNode<K> s = u.split(mid);
+		s.persistNew(u.blockAddr);
+		u.persist();
+		
+		if (parent != null) {
+			int pos = Arrays.binarySearch(parent.keys, 0, parent.last, kmid, comparator);
+			if (pos < 0) {
+				pos = -1 - pos;
+			}
+			parent.insertKey(pos, kmid);
+			parent.children[pos+1] = s.blockAddr;
+			parent.subtreeSizes[pos] = u.size();
+			parent.subtreeSizes[pos+1] = s.size();
+			parent.persist();
+		}
+		else {
+			BNode<K> newRoot = new BNode<>(this, false);
+			newRoot.insertKey(0, kmid);
+			newRoot.children[0] = root.blockAddr;
+			newRoot.children[1] = s.blockAddr;
+			newRoot.subtreeSizes[0] = u.size();
+			newRoot.subtreeSizes[1] = s.size();
+			root = newRoot;
+			newRoot.persistNew(u.blockAddr);
+			cacheNode(u); // old root is no longer pinned as root
+			metaDataDirty = true;
+		}
+		
+		return searchPos > mid ? s : u;
+	}
+	
+	/**
+	 * Build the tree bottom up from keys in ascending order. Nodes are filled left to right up to fillFactor of their
+	 * order and written once, in key order; the whole load is committed once (unless a transaction is open).
+	 * Duplicate keys are skipped.
+	 * 
+	 * @param sorted keys in ascending order
+	 * @param fillFactor in (0, 1]
+	 * @throws IllegalStateException if the tree is not empty
+	 * @throws IllegalArgumentException if the keys are not sorted
+	 */
+	public void bulkLoad(Iterator<? extends K> sorted, double fillFactor) {
+		pendingWriters.incrementAndGet();
+		synchronized (this) {
+			pendingWriters.decrementAndGet();
+			exclusive();
+			if (root != null && root.last > 0) {
+				throw new IllegalStateException("Bulk load requires an empty tree.");
+			}
+			if (!(fillFactor > 0 && fillFactor <= 1)) {
+				throw new IllegalArgumentException("Invalid fill factor: " + fillFactor);
+			}
+			
+			modCount++;
+			try {
+				load(sorted, fillFactor);
+				if (filter != null) {
+					rebuildFilter(filter.bitsPerKey());
+				}
+			} catch (RuntimeException e) {
+				abort();
+				throw e;
+			}
+			autoCommit();
+		}
+	}
+	
+	/**
+	 * Bulk load keys in any order. The keys are sorted first.
+	 * @see #bulkLoad(Iterator, double)
+	 */
+	public void bulkLoad(Collection<? extends K> keys, double fillFactor) {
+		@SuppressWarnings("unchecked")
+		K[] array = (K[])keys.toArray();
+		MergeSort.mergesort(array, comparator);
+		bulkLoad(Arrays.asList(array).iterator(), fillFactor);
+	}
+	
+	private static int fill(int order, int lowWaterMark, double fillFactor) {
+		return Math.max(Math.min(lowWaterMark + 1, order), Math.min(order, (int)Math.round(order * fillFactor)));
+	}
+	
+	private void load(Iterator<? extends K> sorted, double fillFactor) {
+		
+		int leafFill = fill(leafOrder, leafLowWaterMark, fillFactor);
+		int innerFill = fill(innerOrder, innerLowWaterMark, fillFactor);
+		
+		// open.get(level) is the node currently being filled at that level, level 0 being the leaves
+		List<BNode<K>> open = new ArrayList<>();
+		open.add(new BNode<K>(this, true));
+		
+		K prevKey = null;
+		int prevLeaf = 0; // leaves are stored one after the other
+		while (sorted.hasNext()) {
+			K key = sorted.next();
+			if (prevKey != null) {
+				int c = comparator.compare(prevKey, key);
+				if (c == 0) {
+					continue;
+				}
+				if (c > 0) {
+					throw new IllegalArgumentException("Keys are not sorted: " + prevKey + ", " + key);
+				}
+			}
+			prevKey = key;
+			
+			BNode<K> leaf = open.get(0);
+			if (leaf.last < leafFill) {
+				leaf.keys[leaf.last++] = key;
+			}
+			else {
+				// leaf is complete; key becomes the separator between it and the next leaf
+				leaf.persistNew(prevLeaf);
+				prevLeaf = leaf.blockAddr;
+				open.set(0, new BNode<K>(this, true));
+				addSeparator(open, 1, key, leaf, innerFill);
+			}
+		}
+		
+		if (prevKey == null) {
+			return;
+		}
+		
+		BNode<K> child = open.get(0);
+		child.persistNew(prevLeaf);
+		for (int level = 1; level < open.size(); level++) {
+			BNode<K> u = open.get(level);
+			u.children[u.last] = child.blockAddr;
+			u.subtreeSizes[u.last] = child.size();
+			u.persistNew();
+			child = u;
+		}
+		
+		if (root != null) {
+			root.delete(); // empty leaf
+		}
+		root = child;
+		cacheNode(root);
+		while (!root.isLeaf && root.last == 0) {
+			BNode<K> u = root.getChild(0);
+			root.delete();
+			root = u;
+			cacheNode(root);
+		}
+		
+		balanceRightSpine();
+		metaDataDirty = true;
+	}
+	
+	private void addSeparator(List<BNode<K>> open, int level, K key, BNode<K> left, int innerFill) {
+		if (open.size() == level) {
+			open.add(new BNode<K>(this, false));
+		}
+		
+		BNode<K> u = open.get(level);
+		u.children[u.last] = left.blockAddr;
+		u.subtreeSizes[u.last] = left.size();
+		if (u.last < innerFill) {
+			u.keys[u.last++] = key;
+		}
+		else {
+			// left is the last child of u
+			u.persistNew();
+			open.set(level, new BNode<K>(this, false));
+			addSeparator(open, level + 1, key, u, innerFill);
+		}
+	}
+	
+	/**
+	 * After a bulk load only the rightmost node of each level can be underfull. Merge it into its left sibling if
+	 * they fit in one node, otherwise move keys over from the left sibling until both are balanced.
+	 */
+	private void balanceRightSpine() {
+		BNode<K> parent = root;
+		while (!parent.isLeaf) {
+			int pos = parent.last;
+			BNode<K> u = parent.getChild(pos);
+			if (u.low() && pos > 0) {
+				BNode<K> left = parent.getChild(pos - 1);
+				if (left.last + 1 + u.last <= u.keys.length) {
+					merge(parent, left, u, pos - 1, 2);
+					left.delete();
+					pos--;
+				}
+				else {
+					while (left.last > u.last + 1) {
+						rotateRight(parent, left, u, pos - 1);
+					}
+					left.persist();
+				}
+				u.persist();
+				parent.persist();
+			}
+			
+			if (parent == root && root.last == 0) {
+				root.delete();
+				root = u;
+				cacheNode(root);
+			}
+			parent = u;
+		}
+	}
+	
+	/**
+	 * Read up to maxPages page table pages of the block store, so that its free blocks can be reused. Until this
+	 * returns true, new nodes are appended to the end of the file.
+	 * @param maxPages
+	 * @return true once the block store is fully scrubbed
+	 * @see BlockStore#scrub(int)
+	 */
+	public synchronized boolean scrub(int maxPages) {
+		return bs.scrub(maxPages);
+	}
+	
+	/**
+	 * Move up to maxMoves blocks of the block store toward the start of its file, so that the next checkpoint can
+	 * shrink it. Committed unless in a transaction.
+	 * @param maxMoves
+	 * @return number of blocks moved, 0 once the file is compact
+	 * @see BlockStore#compact(int)
+	 */
+	public synchronized int compact(int maxMoves) {
+		exclusive();
+		int moves;
+		try {
+			flush(); // blocks are moved with their content on disk
+			moves = bs.compact(maxMoves);
+		} catch (RuntimeException e) {
+			abort();
+			throw e;
+		}
+		if (!inTransaction) {
+			commitChanges();
+		}
+		return moves;
+	}
+	
+	/**
+	 * Lay out up to maxLeaves leaves in key order in the block store, each in the first free block after the previous
+	 * one, so that a scan reads the file sequentially. Leaves with no free block after the previous one go to the end
+	 * of the file, and {@link #compact(int)} moves them back in the same order. A pass over all leaves takes several calls,
+	 * which resume after the last leaf laid out; changes made in between are picked up if they are ahead of it.
+	 * Committed unless in a transaction.
+	 * @param maxLeaves
+	 * @return true until the pass is complete
+	 */
+	public synchronized boolean defragment(int maxLeaves) {
+		if (maxLeaves <= 0) {
+			throw new IllegalArgumentException();
+		}
+		exclusive();
+		
+		boolean more = root != null;
+		try {
+			flush(); // blocks are moved with their content on disk
+			for (int n = 0; n < maxLeaves && more; n++) {
+				
+				// descend to the leaf after the bound, remembering the next separator on the way
+				int addr = root.blockAddr;
+				K next = null;
+				BNode<K> u = root;
+				while (!u.isLeaf) {
+					int pos = 0;
+					if (defragmenting) {
+						pos = u.search(defragmentBound);
+						pos = pos >= 0 ? pos + 1 : -pos - 1;
+					}
+					if (pos < u.last) {
+						next = u.keyAt(pos);
+					}
+					addr = u.childAt(pos);
+					BNode<K> child = peekNode(addr);
+					releaseUncached(u);
+					u = child;
+				}
+				releaseUncached(u);
+				
+				bs.relocate(addr, defragmentPrev);
+				defragmentPrev = addr;
+				defragmentBound = next;
+				defragmenting = more = next != null;
+			}
+		} catch (RuntimeException e) {
+			abort();
+			throw e;
+		}
+		
+		if (!more) {
+			defragmentBound = null;
+			defragmentPrev = 0;
+		}
+		if (!inTransaction) {
+			commitChanges();
+		}
+		return more;
+	}
+	
+	public synchronized K find(K key) {
+		exclusive();
+		if (root == null || (filter != null && !filter.mightContain(key))) {
+			return null;
+		}
+		else {
+			BNode<K> u = root;
+			while (true) {
+				int pos = u.search(key);
+				if (pos >= 0) {
+					K result = u.keyAt(pos);
+					releaseUncached(u);
+					return result;
+				}
+				pos = -pos - 1;
+				
+				if (u.isLeaf) {
+					releaseUncached(u);
+					return null;
+				}
+				else {
+					BNode<K> child = peekNode(u.childAt(pos));
+					releaseUncached(u);
+					u = child;
+				}
+			}
+		}		
+		
+	}
+	
+	
+	/**
+	 * Find each of keys, like {@link #find(Object)}, in one traversal. The batch is sorted, and each node on the way
+	 * to its keys is read once for all of them, its children being prefetched in key order.
+	 * @param keys
+	 * @return array whose element i is the key in the tree equal to keys[i], or null
+	 */
+	public synchronized K[] findAll(K[] keys) {
+		exclusive();
+		K[] result = Arrays.copyOf(keys, keys.length);
+		Arrays.fill(result, null);
+		if (root == null || keys.length == 0) {
+			return result;
+		}
+		
+		K[] sorted = Arrays.copyOf(keys, keys.length);
+		MergeSort.mergesort(sorted, comparator);
+		int n = 0;
+		for (K key : sorted) {
+			if ((n == 0 || comparator.compare(sorted[n - 1], key) != 0) && (filter == null || filter.mightContain(key))) {
+				sorted[n++] = key;
+			}
+		}
+		K[] found = Arrays.copyOf(result, n);
+		if (n > 0) {
+			findAll(root, sorted, 0, n, found);
+			releaseUncached(root);
+		}
+		
+		for (int i = 0; i < keys.length; i++) {
+			int pos = Arrays.binarySearch(sorted, 0, n, keys[i], comparator);
+			result[i] = pos >= 0 ? found[pos] : null;
+		}
+		return result;
+	}
+	
+	/**
+	 * Find sorted[from..to), which are all in the subtree of u, into found.
+	 */
+	private void findAll(BNode<K> u, K[] sorted, int from, int to, K[] found) {
+		int[] childIndex = new int[to - from]; // the child each key descends into, or -1 if it is in u
+		for (int i = from; i < to; i++) {
+			int pos = u.search(sorted[i]);
+			if (pos >= 0) {
+				found[i] = u.keyAt(pos);
+				childIndex[i - from] = -1;
+			}
+			else {
+				childIndex[i - from] = u.isLeaf ? -1 : -1 - pos;
+			}
+		}
+		if (u.isLeaf) {
+			return;
+		}
+		
+		for (int i = 0, prev = -1; i < childIndex.length; i++) {
+			if (childIndex[i] > prev) {
+				prev = childIndex[i];
+				int blockAddr = u.childAt(prev);
+				if (!cache.contains(blockAddr) && !dirtyNodes.containsKey(blockAddr)) {
+					bs.prefetch(blockAddr);
+				}
+			}
+		}
+		// the keys descending into the same child are consecutive
+		for (int i = 0; i < childIndex.length; ) {
+			if (childIndex[i] < 0) {
+				i++;
+				continue;
+			}
+			int j = i + 1;
+			while (j < childIndex.length && childIndex[j] == childIndex[i]) {
+				j++;
+			}
+			BNode<K> child = peekNode(u.childAt(childIndex[i]));
+			findAll(child, sorted, from + i, from + j, found);
+			releaseUncached(child);
+			i = j;
+		}
+	}
+	
+	/**
+	 * 
+	 * @param key
+	 * @return number of keys strictly less than key
+	 */
+	public synchronized int rank(K key) {
+		exclusive();
+		return rank(key, false);
+	}
+	
+	/**
+	 * 
+	 * @param key
+	 * @param inclusive whether to count key itself if it is in the tree
+	 * @return number of keys less than (or equal to) key
+	 */
+	private int rank(K key, boolean inclusive) {
+		int result = 0;
+		BNode<K> u = root;
+		while (u != null) {
+			int pos = Arrays.binarySearch(u.keys, 0, u.last, key, this.comparator);
+			int end = pos >= 0 ? pos : -1 - pos; // keys[0..end-1] < key
+			result += end;
+			if (!u.isLeaf) {
+				for (int i = 0; i < end; i++) {
+					result += u.subtreeSizes[i];
+				}
+			}
+			
+			if (pos >= 0) {
+				if (!u.isLeaf) {
+					result += u.subtreeSizes[pos];
+				}
+				return inclusive ? result + 1 : result;
+			}
+			u = u.isLeaf ? null : u.getChild(end);
+		}
+		return result;
+	}
+	
+	/**
+	 * 
+	 * @param index
+	 * @return the key at index (0-based) in ascending order
+	 */
+	public synchronized K select(int index) {
+		exclusive();
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+		
+		BNode<K> u = root;
+		while (true) {
+			if (u.isLeaf) {
+				return u.keys[index];
+			}
+			
+			int i = 0;
+			while (index >= u.subtreeSizes[i]) {
+				index -= u.subtreeSizes[i];
+				if (index == 0) {
+					return u.keys[i];
+				}
+				index--;
+				i++;
+			}
+			u = u.getChild(i);
+		}
+	}
+	
+	/**
+	 * Number of keys between from and to. A null bound means unbounded.
+	 */
+	public synchronized int count(K from, boolean fromInclusive, K to, boolean toInclusive) {
+		exclusive();
+		int lo = from == null ? 0 : rank(from, !fromInclusive);
+		int hi = to == null ? size() : rank(to, toInclusive);
+		return Math.max(0, hi - lo);
+	}
+	
+	/**
+	 * 
+	 * @param p percentile in [0, 100]
+	 * @return the smallest key such that at least p percent of the keys are less than or equal to it (nearest rank), or null if the tree is empty.
+	 */
+	public synchronized K percentile(double p) {
+		if (!(p >= 0 && p <= 100)) {
+			throw new IllegalArgumentException("Invalid percentile: " + p);
+		}
+		int n = size();
+		if (n == 0) {
+			return null;
+		}
+		int index = (int)Math.ceil(p / 100 * n) - 1;
+		return select(Math.min(n - 1, Math.max(0, index)));
+	}
+	
+	public Cursor cursor() {
+		return new Cursor(null);
+	}
+	
+	/**
+	 * Read-only view of the tree as of the last commit, which any number of threads can read without locking the
+	 * tree, while changes are made and committed. Changes which are not committed yet are not visible to it.
+	 * It keeps the blocks of that version from being reused until it is closed, so it should not be kept open longer than needed.
+	 * @return
+	 * @see BlockStore#snapshot()
+	 */
+	public synchronized Snapshot snapshot() {
+		return new Snapshot(bs.snapshot());
+	}
+	
+	@Override
+	public Iterator<K> iterator() {
+		return range(null, true, null, true).iterator();
+	}
+	
+	/**
+	 * Keys between from and to in ascending order. A null bound means unbounded.
+	 */
+	public Iterable<K> range(final K from, final boolean fromInclusive, final K to, final boolean toInclusive) {
+		return new Iterable<K>() {
+			@Override
+			public Iterator<K> iterator() {
+				return new RangeIterator(null, from, fromInclusive, to, toInclusive, false);
+			}
+		};
+	}
+	
+	/**
+	 * Keys between from and to in descending order, so from is the upper bound. A null bound means unbounded.
+	 */
+	public Iterable<K> descendingRange(final K from, final boolean fromInclusive, final K to, final boolean toInclusive) {
+		return new Iterable<K>() {
+			@Override
+			public Iterator<K> iterator() {
+				return new RangeIterator(null, from, fromInclusive, to, toInclusive, true);
+			}
+		};
+	}
+	
+	/**
+	 * Position in the tree, kept as the path from the root: the top of the path holds the node and index of the
+	 * current key, every other entry holds an ancestor and the index of the child the path descends into.
+	 * Moving to the next or previous key only reads nodes which are not on the path yet, so a full scan reads each
+	 * node once. The cursor is invalidated by any add or delete, unless it is a cursor of a {@link Snapshot}.
+	 */
+	public class Cursor {
+		
+		private BNode<K>[] nodes = newNodeArray(8);
+		private int[] indexes = new int[8];
+		private int top = -1; // -1: not positioned on a key
+		private boolean afterLast = false; // when not positioned: after the last key or before the first one
+		private int expectedModCount;
+		private final Snapshot snapshot; // null for the tree itself
+		
+		private Cursor(Snapshot snapshot) {
+			this.snapshot = snapshot;
+			if (snapshot == null) {
+				expectedModCount = modCount;
+			}
+		}
+		
+		/**
+		 * A cursor over a snapshot is used by one thread, while other threads read the same snapshot without locking it.
+		 */
+		private Object lock() {
+			return snapshot != null ? this : BTree.this;
+		}
+		
+		private BNode<K> root() {
+			return snapshot != null ? snapshot.root : root;
+		}
+		
+		public K key() {
+			synchronized (lock()) {
+				checkModCount();
+				return top < 0 ? null : nodes[top].keys[indexes[top]];
+			}
+		}
+		
+		public K first() {
+			synchronized (lock()) {
+				reset();
+				if (root() != null && root().last > 0) {
+					descendLeftmost(root());
+				}
+				return key();
+			}
+		}
+		
+		public K last() {
+			synchronized (lock()) {
+				reset();
+				if (root() != null && root().last > 0) {
+					descendRightmost(root());
+				}
+				return key();
+			}
+		}
+		
+		/**
+		 * Position at the smallest key greater than or equal to key.
+		 * @return the key at the new position, or null if there is none.
+		 */
+		public K ceiling(K key) {
+			synchronized (lock()) {
+				return seek(key, true, true);
+			}
+		}
+		
+		/**
+		 * Position at the smallest key strictly greater than key.
+		 */
+		public K higher(K key) {
+			synchronized (lock()) {
+				return seek(key, false, true);
+			}
+		}
+		
+		/**
+		 * Position at the largest key less than or equal to key.
+		 */
+		public K floor(K key) {
+			synchronized (lock()) {
+				return seek(key, true, false);
+			}
+		}
+		
+		/**
+		 * Position at the largest key strictly less than key.
+		 */
+		public K lower(K key) {
+			synchronized (lock()) {
+				return seek(key, false, false);
+			}
+		}
+		
+		/**
+		 * Move to the next key. From before the first key, move to the first key.
+		 * @return the new key, or null if the cursor moves after the last key.
+		 */
+		public K next() {
+			synchronized (lock()) {
+				checkModCount();
+				if (top < 0) {
+					return afterLast ? null : first();
+				}
+				
+				BNode<K> u = nodes[top];
+				int i = indexes[top];
+				if (!u.isLeaf) {
+					indexes[top] = i + 1;
+					descendLeftmost(child(u, i + 1, true));
+				}
+				else if (i + 1 < u.last) {
+					indexes[top] = i + 1;
+				}
+				else {
+					top--;
+					while (top >= 0 && indexes[top] >= nodes[top].last) {
+						top--;
+					}
+					afterLast = top < 0;
+				}
+				return key();
+			}
+		}
+		
+		/**
+		 * Move to the previous key. From after the last key, move to the last key.
+		 * @return the new key, or null if the cursor moves before the first key.
+		 */
+		public K prev() {
+			synchronized (lock()) {
+				checkModCount();
+				if (top < 0) {
+					return afterLast ? last() : null;
 				}
+				
+				BNode<K> u = nodes[top];
+				int i = indexes[top];
+				if (!u.isLeaf) {
+					descendRightmost(child(u, i, false));
+				}
+				else if (i > 0) {
+					indexes[top] = i - 1;
+				}
+				else {
+					top--;
+					while (top >= 0 && indexes[top] == 0) {
+						top--;
+					}
+					if (top >= 0) {
+						indexes[top]--;
+					}
+					afterLast = false;
+				}
+				return key();
+			}
+		}
+		
+		private K seek(K key, boolean inclusive, boolean forward) {
+			reset();
+			if (root() == null || root().last == 0) {
+				afterLast = forward;
+				return null;
 			}
 			
-			return u;
+			BNode<K> u = root();
+			while (true) {
+				int pos = Arrays.binarySearch(u.keys, 0, u.last, key, comparator);
+				if (pos >= 0) {
+					push(u, pos);
+					if (!inclusive) {
+						return forward ? next() : prev();
+					}
+					return key();
+				}
+				pos = -1 - pos;
+				if (u.isLeaf) {
+					// keys[pos-1] < key < keys[pos]
+					if (forward) {
+						if (pos < u.last) {
+							push(u, pos);
+							return key();
+						}
+						push(u, pos - 1);
+						return next();
+					}
+					else {
+						if (pos > 0) {
+							push(u, pos - 1);
+							return key();
+						}
+						push(u, 0);
+						return prev();
+					}
+				}
+				push(u, pos);
+				u = child(u, pos, forward);
+			}
 		}
 		
-		int pos = Arrays.binarySearch(parent.keys, 0, parent.last, key, comparator);
-		int leftPos = pos >= 0 ? pos : -1 - pos -1;
-		int rightPos = pos >= 0 ? pos + 2 : -1 -pos + 1;
-		if (pos < 0) {
-			pos = -1 - pos;
+		private void descendLeftmost(BNode<K> u) {
+			while (!u.isLeaf) {
+				push(u, 0);
+				u = child(u, 0, true);
+			}
+			push(u, 0);
 		}
 		
-		if (leftPos >= 0) {
-			leftChild = parent.getChild(leftPos);
-			if (!leftChild.low()) {
-				rotateRight(parent, leftChild, u, pos);
-				leftChild.persist();
-				u.persist();
-				parent.persist();
-				if (parent == root) {
-					writeMetaData();
-				}
-				return u;
+		private void descendRightmost(BNode<K> u) {
+			while (!u.isLeaf) {
+				push(u, u.last);
+				u = child(u, u.last, false);
 			}
-			
+			push(u, u.last - 1);
 		}
 		
-		if (rightPos <= parent.last) {
-			rightChild = parent.getChild(rightPos);
-			if (!rightChild.low()) {
-				rotateLeft(parent, u, rightChild, pos);
-				rightChild.persist();
-				u.persist();
-				parent.persist();
-				if (parent == root) {
-					writeMetaData();
-				}
-				return u;
+		/**
+		 * Child i of u, prefetching the children the cursor visits after it.
+		 */
+		private BNode<K> child(BNode<K> u, int i, boolean forward) {
+			if (snapshot != null) {
+				return snapshot.child(u, i).decode();
+			}
+			if (readAhead > 0) {
+				prefetchChildren(u, forward ? i + 1 : i - 1, forward ? i + 1 + readAhead : i - 1 - readAhead);
 			}
+			return u.getChild(i);
 		}
 		
-		if (leftChild != null) {
-			merge(parent, leftChild, u, leftPos, 2);
-			leftChild.delete();
-			u.persist();
-			parent.persist();
-			if (parent == root) {
-				writeMetaData();
+		private void push(BNode<K> u, int index) {
+			if (++top == nodes.length) {
+				nodes = Arrays.copyOf(nodes, top * 2);
+				indexes = Arrays.copyOf(indexes, top * 2);
 			}
+			nodes[top] = u;
+			indexes[top] = index;
 		}
-		else {
-			merge(parent, u, rightChild, rightPos, 1);
-			rightChild.delete();
-			u.persist();
-			parent.persist();
-			if (parent == root) {
-				writeMetaData();
+		
+		private void reset() {
+			top = -1;
+			afterLast = false;
+			if (snapshot == null) {
+				exclusive();
+				expectedModCount = modCount;
 			}
 		}
 		
-		return u;
-	}
-	
-	private static <K> void rotateRight(BNode<K> parent, BNode<K> left, BNode<K> right, int pos) {
-		right.insertKey(0, parent.keys[pos]);
-		if (!right.isLeaf) {
-			right.children[0] = left.children[left.last];
-			right.subtreeSizes[0] = left.subtreeSizes[left.last];
+		private void checkModCount() {
+			if (snapshot == null) {
+				exclusive();
+				if (expectedModCount != modCount) {
+					throw new ConcurrentModificationException();
+				}
+			}
 		}
-		parent.keys[pos] = left.keys[left.last-1];
-		left.deleteKey(left.last - 1, false);
 	}
 	
-	private static <K> void rotateLeft(BNode<K> parent, BNode<K> left, BNode<K> right, int pos) {
-		left.insertKey(left.last, parent.keys[pos]);
-		if (!left.isLeaf) {
-			left.children[left.last] = right.children[0];
-			left.subtreeSizes[left.last] = right.subtreeSizes[0];			
-		}
-		parent.keys[pos] = right.keys[0];
-		right.deleteKey(0, true);
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <K> BNode<K>[] newNodeArray(int n) {
+		return new BNode[n];
 	}
 	
-	/**
-	 * Keep right child, merge the left child to right child
-	 * @param parent
-	 * @param left
-	 * @param right
-	 * @param pos
-	 * @param opts 0: keep root, 1: keep left, 2: keep right
-	 */
-	private static <K> void merge(BNode<K> parent, BNode<K> left, BNode<K> right, int pos, int opts) {
-		int newLast = left.last + 1 + right.last;
-		K[] newKeys = Arrays.copyOf(left.keys, left.keys.length);
-		int[] newChildren = left.isLeaf ? null : Arrays.copyOf(left.children, left.children.length);
-		int[] newSubtreeSizes = left.isLeaf ? null : Arrays.copyOf(left.subtreeSizes, left.subtreeSizes.length);
-		
-		newKeys[left.last] = parent.keys[pos];
-		System.arraycopy(right.keys, 0, newKeys, left.last + 1, right.last);
-		if (!left.isLeaf) {
-			System.arraycopy(right.children, 0, newChildren, left.last + 1, right.last + 1);
-			System.arraycopy(right.subtreeSizes, 0, newSubtreeSizes, left.last + 1, right.last + 1);
-		}
-		
-		switch (opts) {
-		case 1: // keep left
-			parent.deleteKey(pos, false);
-			left.keys = newKeys;
-			left.children = newChildren;
-			left.subtreeSizes = newSubtreeSizes;
-			left.last = newLast;
-			break;
-		case 2: // keep right
-			parent.deleteKey(pos, true);
-			right.keys = newKeys;
-			right.children = newChildren;
-			right.subtreeSizes = newSubtreeSizes;
-			right.last = newLast;
-			break;
-		default: // keep parent
-			parent.keys = newKeys;
-			parent.isLeaf = left.isLeaf;
-			parent.children = newChildren;
-			parent.subtreeSizes = newSubtreeSizes;
-			parent.last = newLast;
-			break;
-		}
+	private class RangeIterator implements Iterator<K> {
 		
-	}
-
-	private BNode<K> handleOverflow(BNode<K> u, BNode<K> parent, K searchKey) {
+		private final Cursor cursor;
+		private final K to;
+		private final boolean toInclusive;
+		private final boolean descending;
+		private K nextKey;
 		
-		if (parent != null) {
-			BNode<K> leftChild = null;
-			BNode<K> rightChild = null;
+		private RangeIterator(Snapshot snapshot, K from, boolean fromInclusive, K to, boolean toInclusive, boolean descending) {
+			this.cursor = new Cursor(snapshot);
+			this.to = to;
+			this.toInclusive = toInclusive;
+			this.descending = descending;
 			
-			int pos = Arrays.binarySearch(parent.keys, 0, parent.last, searchKey, comparator);
-			int leftPos = pos >= 0 ? pos : -1 - pos -1;
-			int rightPos = pos >= 0 ? pos + 2 : -1 -pos + 1;
-			if (pos < 0) {
-				pos = -1 - pos;
+			if (from == null) {
+				nextKey = descending ? cursor.last() : cursor.first();
 			}
-			
-			if (leftPos >= 0) {
-				leftChild = parent.getChild(leftPos);
-				if (!leftChild.full()) {
-					rotateLeft(parent, leftChild, u, pos - 1);
-					leftChild.persist();
-					u.persist();
-					parent.persist();
-					if (parent == root) {
-						writeMetaData();
-					}
-					return u;
-				}
-				
+			else if (descending) {
+				nextKey = fromInclusive ? cursor.floor(from) : cursor.lower(from);
 			}
-			
-			if (rightPos <= parent.last) {
-				rightChild = parent.getChild(rightPos);
-				if (!rightChild.full()) {
-					rotateRight(parent, u, rightChild, pos);
-					rightChild.persist();
-					u.persist();
-					parent.persist();
-					if (parent == root) {
-						writeMetaData();
-					}
-					return u;
-				}
+			else {
+				nextKey = fromInclusive ? cursor.ceiling(from) : cursor.higher(from);
 			}
-			
+			checkBound();
 		}
 		
-		return split(u, parent, searchKey);
-	}
-
-	private BNode<K> split(BNode<K> u, BNode<K> parent, K searchKey) {
-		
-		int searchPos = Arrays.binarySearch(u.keys, 0, u.last, searchKey, comparator);
-		if (searchPos < 0) {
-			searchPos = -1 - searchPos;
+		private void checkBound() {
+			if (nextKey != null && to != null) {
+				int c = comparator.compare(nextKey, to);
+				if (descending) {
+					c = -c;
+				}
+				if (c > 0 || (c == 0 && !toInclusive)) {
+					nextKey = null;
+				}
+			}
 		}
 		
-		int mid = (u.last - 1) / 2;
-		K kmid = u.keys[mid];
-		BNode<K> s = u.split(mid);
-		s.persistNew();
-		u.persist();
+		@Override
+		public boolean hasNext() {
+			return nextKey != null;
+		}
 		
-		if (parent != null) {
-			int pos = Arrays.binarySearch(parent.keys, 0, parent.last, kmid, comparator);
-			if (pos < 0) {
-				pos = -1 - pos;
+		@Override
+		public K next() {
+			if (nextKey == null) {
+				throw new NoSuchElementException();
 			}
-			parent.insertKey(pos, kmid);
-			parent.children[pos+1] = s.blockAddr;
-			parent.persist();
-		}
-		else {
-			BNode<K> newRoot = new BNode<>(this, false);
-			newRoot.insertKey(0, kmid);
-			newRoot.children[0] = root.blockAddr;
-			newRoot.children[1] = s.blockAddr;
-			newRoot.persistNew();
-			root = newRoot;
-			writeMetaData();
+			K result = nextKey;
+			nextKey = descending ? cursor.prev() : cursor.next();
+			checkBound();
+			return result;
 		}
 		
-		return searchPos > mid ? s : u;
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
 	}
 	
-	public K find(K key) {
+	/**
+	 * Nodes are read from the committed version of the block store and are never changed. Inner nodes are kept once
+	 * read, like pinned nodes in the cache of the tree, and shared by the threads reading the snapshot. Leaves are
+	 * read each time by the thread which needs them, so find can search a leaf without decoding it.
+	 */
+	public class Snapshot implements Iterable<K>, AutoCloseable {
 		
-		if (root == null) {
-			return null;
+		private final BlockStore.Snapshot blocks;
+		private final BNode<K> root;
+		private final Map<Integer, BNode<K>> innerNodes = new ConcurrentHashMap<>();
+		
+		private Snapshot(BlockStore.Snapshot blocks) {
+			this.blocks = blocks;
+			ByteBuffer bb = bs.bufferPool().acquire();
+			try {
+				blocks.readBlock(1, bb.array());
+				int ri = bb.getInt(); // rootIndex
+				this.root = ri > 0 ? new BNode<K>(BTree.this, ri, blocks).decode() : null; // shared, even if it is a leaf
+			}
+			catch (RuntimeException e) {
+				blocks.release();
+				throw e;
+			}
+			finally {
+				bs.bufferPool().release(bb);
+			}
 		}
-		else {
+		
+		/**
+		 * 
+		 * @return child i of u, which may be an undecoded leaf
+		 */
+		private BNode<K> child(BNode<K> u, int i) {
+			int blockAddr = u.children[i];
+			BNode<K> child = innerNodes.get(blockAddr);
+			if (child == null) {
+				child = new BNode<K>(BTree.this, blockAddr, blocks);
+				if (!child.isLeaf) {
+					innerNodes.put(blockAddr, child);
+				}
+			}
+			return child;
+		}
+		
+		public int size() {
+			return root != null ? root.size() : 0;
+		}
+		
+		public K find(K key) {
 			BNode<K> u = root;
-			while (true) {
-				int pos = Arrays.binarySearch(u.keys, 0, u.last, key, this.comparator);
-				if (pos >= 0) {
-					return u.keys[pos];
+			while (u != null) {
+				int pos = u.search(key);
+				K result = pos >= 0 ? u.keyAt(pos) : null;
+				if (pos >= 0 || u.isLeaf) {
+					if (u.raw != null) {
+						bs.bufferPool().release(u.raw);
+						u.raw = null;
+					}
+					return result;
 				}
-				pos = -pos - 1;
-				
-				if (u.isLeaf) {
-					return null;
+				u = child(u, -pos - 1);
+			}
+			return null;
+		}
+		
+		/**
+		 * A cursor is used by one thread at a time; each thread scanning the snapshot uses its own.
+		 */
+		public Cursor cursor() {
+			return new Cursor(this);
+		}
+		
+		@Override
+		public Iterator<K> iterator() {
+			return range(null, true, null, true).iterator();
+		}
+		
+		/**
+		 * Keys between from and to in ascending order. A null bound means unbounded.
+		 */
+		public Iterable<K> range(final K from, final boolean fromInclusive, final K to, final boolean toInclusive) {
+			return new Iterable<K>() {
+				@Override
+				public Iterator<K> iterator() {
+					return new RangeIterator(Snapshot.this, from, fromInclusive, to, toInclusive, false);
 				}
-				else {
-					u = u.getChild(pos);
+			};
+		}
+		
+		/**
+		 * Keys between from and to in descending order, so from is the upper bound. A null bound means unbounded.
+		 */
+		public Iterable<K> descendingRange(final K from, final boolean fromInclusive, final K to, final boolean toInclusive) {
+			return new Iterable<K>() {
+				@Override
+				public Iterator<K> iterator() {
+					return new RangeIterator(Snapshot.this, from, fromInclusive, to, toInclusive, true);
 				}
-			}
-		}		
+			};
+		}
 		
+		/**
+		 * Release the blocks of this version. The snapshot and its cursors must not be read afterward.
+		 */
+		@Override
+		public void close() {
+			blocks.release();
+			innerNodes.clear();
+		}
 	}
 	
-	
-	public void printTree() {
-		
+	public synchronized void printTree() {
+		exclusive();
 		if (root == null) {
 			System.out.println("Empty");
 		}
@@ -457,6 +2241,7 @@ public class BTree<K> {
 				if (!u.isLeaf) {
 					queue.add(null);
 					for (int i = 0; i < u.keysSize() + 1; i++) {
+						prefetchChildren(u, i, i + 1 + readAhead);
 						queue.add(u.getChild(i));
 					}
 				}
@@ -467,7 +2252,8 @@ public class BTree<K> {
 	}
 
 	@Override
-	public String toString() {
+	public synchronized String toString() {
+		exclusive();
 		StringBuilder result = new StringBuilder();
 		
 		if (root == null) {
@@ -487,6 +2273,7 @@ public class BTree<K> {
 				if (!u.isLeaf) {
 					queue.add(null);
 					for (int i = 0; i < u.keysSize() + 1; i++) {
+						prefetchChildren(u, i, i + 1 + readAhead);
 						queue.add(u.getChild(i));
 					}
 				}
@@ -573,6 +2360,15 @@ public class BTree<K> {
 					btree.printTree();
 					break;
 				}
+				case "begin":
+					btree.begin();
+					break;
+				case "commit":
+					btree.commit();
+					break;
+				case "rollback":
+					btree.rollback();
+					break;
 				default:
 					System.out.println("Unknown command");
 					break;
@@ -588,6 +2384,8 @@ public class BTree<K> {
 	
 	private static class BNode<K> {
 		
+		private static final int HEADER_SIZE = 9; // checksum, isLeaf, last
+		
 		private transient int blockAddr;
 		
 		private int last;
@@ -596,6 +2394,7 @@ public class BTree<K> {
 		private int[] subtreeSizes;
 		private boolean isLeaf;
 		private final transient BTree<K> btree;
+		private transient ByteBuffer raw; // serialized node until it is decoded; keys, children and subtreeSizes are null meanwhile
 		
 		public BNode(BTree<K> btree, boolean isLeaf) {
 			this.btree = btree;
@@ -616,37 +2415,92 @@ public class BTree<K> {
 			}
 			else {
 				int sum = last;
-				for (int i = 0; i < last; i++) {
+				for (int i = 0; i <= last; i++) {
 					sum += subtreeSizes[i];
 				}
 				return sum;
 			}
 		}
 		
+		public int indexOfChild(int blockAddr) {
+			for (int i = 0; i <= last; i++) {
+				if (children[i] == blockAddr) {
+					return i;
+				}
+			}
+			throw new IllegalStateException("Block " + blockAddr + " is not a child of " + this.blockAddr);
+		}
+		
 		public BNode<K> getChild(int pos) {
 			if (isLeaf || pos >= children.length || pos < 0) {
 				throw new IndexOutOfBoundsException();
 			}
-			return new BNode<K>(btree, children[pos]);
+			return btree.loadNode(children[pos]);
 		}
 		
 		public BNode(BTree<K> btree, int blockAddr) {
+			this(btree, blockAddr, null);
+		}
+		
+		/**
+		 * 
+		 * @param btree
+		 * @param blockAddr
+		 * @param snapshot the version to read the node from, or null for the current one. An inner node of a snapshot
+		 *        is decoded at once, since the threads reading the snapshot share it.
+		 */
+		public BNode(BTree<K> btree, int blockAddr, BlockStore.Snapshot snapshot) {
 			this.btree = btree;
 			this.blockAddr = blockAddr;
 			
-			ByteBuffer bb = ByteBuffer.wrap(btree.bs.readBlock(blockAddr));
+			BufferPool pool = btree.bs.bufferPool();
+			ByteBuffer bb = pool.acquire();
+			if (snapshot != null) {
+				snapshot.readBlock(blockAddr, bb.array());
+			}
+			else {
+				btree.bs.readBlock(blockAddr, bb.array());
+			}
 			int checksum = bb.getInt();
 			if (checksum != 154) {
+				pool.release(bb);
 				throw new IllegalStateException("Data Store is corrupted");
 			}
 			this.isLeaf = bb.get() != 0;
 			this.last = bb.getInt();
+			
+			if ((snapshot == null || isLeaf) && btree.keySerializer instanceof FixedSizeSerializer) {
+				this.raw = bb; // keys are at fixed offsets, so they can be read where they are; back to the pool once decoded
+			}
+			else {
+				decode(bb);
+				pool.release(bb);
+			}
+		}
+		
+		/**
+		 * Deserialize the keys and children, if not done yet. Must be called before the node is changed or its fields are read.
+		 * @return this node
+		 */
+		public BNode<K> decode() {
+			if (raw != null) {
+				ByteBuffer bb = raw;
+				raw = null;
+				bb.position(HEADER_SIZE);
+				decode(bb);
+				btree.bs.bufferPool().release(bb);
+			}
+			return this;
+		}
+		
+		private void decode(ByteBuffer bb) {
 			this.keys = (K[])(isLeaf ? new Object[btree.leafOrder] : new Object[btree.innerOrder]);
 			this.children = isLeaf ? null : new int[this.keys.length + 1];
 			this.subtreeSizes = isLeaf ? null : new int[this.keys.length + 1];
 			
+			// unused slots are serialized too: they are skipped, except in a leaf where nothing follows the keys
 			Serializer<K> keySerializer = btree.keySerializer;
-			for (int i = 0; i < keys.length; i++) {
+			for (int i = 0; i < (isLeaf ? last : keys.length); i++) {
 				K k = keySerializer.read(bb);
 				if (i < last) {
 					this.keys[i] = k;
@@ -663,13 +2517,59 @@ public class BTree<K> {
 					}
 				}
 			}
+		}
+		
+		/**
+		 * Binary search over the keys. If the node is not decoded, only the keys it compares against are deserialized.
+		 * @param key
+		 * @return same as {@link Arrays#binarySearch(Object[], int, int, Object, Comparator)}
+		 */
+		public int search(K key) {
+			if (raw == null) {
+				return Arrays.binarySearch(keys, 0, last, key, btree.comparator);
+			}
 			
-
+			int lo = 0;
+			int hi = last - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int c = btree.comparator.compare(keyAt(mid), key);
+				if (c < 0) {
+					lo = mid + 1;
+				}
+				else if (c > 0) {
+					hi = mid - 1;
+				}
+				else {
+					return mid;
+				}
+			}
+			return -(lo + 1);
+		}
+		
+		public K keyAt(int i) {
+			if (raw == null) {
+				return keys[i];
+			}
+			FixedSizeSerializer<K> keySerializer = (FixedSizeSerializer<K>)btree.keySerializer;
+			raw.position(HEADER_SIZE + i * keySerializer.size());
+			return keySerializer.read(raw);
+		}
+		
+		public int childAt(int i) {
+			if (raw == null) {
+				return children[i];
+			}
+			int capacity = isLeaf ? btree.leafOrder : btree.innerOrder;
+			return raw.getInt(HEADER_SIZE + capacity * ((FixedSizeSerializer<K>)btree.keySerializer).size() + i * 8);
 		}
 		
-		private byte[] toBytes() {
-			byte[] buf = new byte[this.btree.bs.blocksize()];
-			ByteBuffer bb = ByteBuffer.wrap(buf);
+		/**
+		 * 
+		 * @return buffer from the pool, to be released by the caller
+		 */
+		private ByteBuffer toBytes() {
+			ByteBuffer bb = this.btree.bs.bufferPool().acquire();
 			
 			int checksum = 154;
 			bb.putInt(checksum);
@@ -686,30 +2586,58 @@ public class BTree<K> {
 					bb.putInt(i < last + 1 ? this.subtreeSizes[i] : 0);
 				}
 			}
+			Arrays.fill(bb.array(), bb.position(), bb.capacity(), (byte)0);
 			
-			return buf;
+			return bb;
 		}
 		
 		public int persistNew() {
+			return persistNew(0);
+		}
+		
+		/**
+		 * 
+		 * @param near a node to store this node close to, or 0
+		 * @return
+		 */
+		public int persistNew(int near) {
 			if (this.blockAddr != 0) {
 				throw new IllegalStateException();
 			}
-			this.blockAddr = btree.bs.placeBlock(toBytes());
+			this.blockAddr = btree.bs.allocateBlocks(1, near); // written by the next flush
+			btree.markDirty(this);
+			btree.cacheNode(this);
 			return blockAddr;
 		}
 		
+		/**
+		 * Record that this node changed. It is written by the next flush.
+		 */
 		public void persist() {
 			if (this.blockAddr <= 0) {
 				throw new IllegalStateException();
 			}
-			btree.bs.writeBlock(this.blockAddr, toBytes());
+			btree.markDirty(this);
+			btree.cacheNode(this);
+		}
+		
+		private void write() {
+			ByteBuffer bb = toBytes();
+			try {
+				btree.bs.writeBlock(this.blockAddr, bb.array());
+			}
+			finally {
+				btree.bs.bufferPool().release(bb);
+			}
 		}
 		
 		public void delete() {
 			if (this.blockAddr == 0) {
 				throw new IllegalStateException();
 			}
+			btree.dirtyNodes.remove(this.blockAddr);
 			btree.bs.freeBlock(this.blockAddr);
+			btree.cache.remove(this.blockAddr);
 			this.blockAddr = 0;
 		}
 				
@@ -772,14 +2700,14 @@ public class BTree<K> {
 			newSibling.last = last - mid - 1;
 			
 			last = mid;
-			System.arraycopy(keys, mid + 1, newSibling.keys, 0, keys.length - mid - 1);
-			Arrays.fill(keys, last, keys.length, 0);
+			System.arraycopy(keys, mid + 1, newSibling.keys, 0, newSibling.last);
+			Arrays.fill(keys, last, keys.length, null);
 			if (!isLeaf) {
-				System.arraycopy(children, mid, newSibling.children, 0, children.length - mid);
-				System.arraycopy(subtreeSizes, mid, newSibling.subtreeSizes, 0, subtreeSizes.length - mid);
+				System.arraycopy(children, mid + 1, newSibling.children, 0, newSibling.last + 1);
+				System.arraycopy(subtreeSizes, mid + 1, newSibling.subtreeSizes, 0, newSibling.last + 1);
 				
-				Arrays.fill(children, last + 1, children.length - last - 1, 0);
-				Arrays.fill(subtreeSizes, last + 1, subtreeSizes.length - last - 1, 0);
+				Arrays.fill(children, last + 1, children.length, 0);
+				Arrays.fill(subtreeSizes, last + 1, subtreeSizes.length, 0);
 			}
 			
 			return newSibling;
@@ -787,9 +2715,910 @@ public class BTree<K> {
 		
 		@Override
 		public String toString() {
+			decode();
 			return Arrays.toString(Arrays.copyOf(keys, last));
 		}
 		
 	}	
 	
+	/**
+	 * 
+	 * Test Cases
+	 * 
+	 * @author Trung Phan
+	 *
+	 */
+	public static class TestCase {
+		
+		@Test
+		public void range_test() {
+			BTree<Integer> btree = new BTree<Integer>(new InMemoryBlockIO(100 * 4), new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			TreeSet<Integer> expected = new TreeSet<>();
+			
+			Random random = new Random(100);
+			btree.begin();
+			for (int i = 0; i < 2000; i++) {
+				int key = random.nextInt(1000);
+				if (random.nextInt(3) == 0) {
+					Assert.assertEquals(expected.remove(key), btree.delete(key));
+				}
+				else {
+					Assert.assertEquals(expected.add(key), btree.add(key));
+				}
+			}
+			btree.commit();
+			
+			Assert.assertEquals(new ArrayList<>(expected), toList(btree));
+			for (int i = 0; i < 100; i++) {
+				int from = random.nextInt(1000);
+				int to = from + random.nextInt(200);
+				Assert.assertEquals(new ArrayList<>(expected.subSet(from, true, to, false)), toList(btree.range(from, true, to, false)));
+				Assert.assertEquals(new ArrayList<>(expected.subSet(from, false, to, true).descendingSet()), toList(btree.descendingRange(to, true, from, false)));
+			}
+			
+			BTree<Integer>.Cursor cursor = btree.cursor();
+			Assert.assertEquals(expected.ceiling(500), cursor.ceiling(500));
+			Assert.assertEquals(expected.higher(cursor.key()), cursor.next());
+			Assert.assertEquals(expected.lower(cursor.key()), cursor.prev());
+			Assert.assertNull(cursor.higher(1000));
+			Assert.assertEquals(expected.last(), cursor.prev());
+		}
+		
+		@Test
+		public void bulk_load_test() {
+			List<Integer> keys = new ArrayList<>();
+			for (int i = 0; i < 1000; i++) {
+				keys.add(i);
+			}
+			List<Integer> shuffled = new ArrayList<>(keys);
+			Collections.shuffle(shuffled, new Random(100));
+			
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4);
+			BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			btree.bulkLoad(shuffled, 0.8);
+			Assert.assertEquals(keys, toList(btree));
+			Assert.assertEquals(1000, btree.size());
+			
+			// the loaded tree supports regular updates and is persisted
+			btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			for (int i = 0; i < 1000; i += 2) {
+				Assert.assertTrue(btree.delete(i));
+			}
+			Assert.assertTrue(btree.add(2000));
+			Assert.assertEquals(Integer.valueOf(999), btree.find(999));
+			Assert.assertNull(btree.find(998));
+		}
+		
+		@Test
+		public void order_statistics_test() {
+			BTree<Integer> btree = new BTree<Integer>(new InMemoryBlockIO(100 * 4), new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			TreeSet<Integer> expected = new TreeSet<>();
+			
+			Random random = new Random(100);
+			btree.begin();
+			for (int round = 0; round < 10; round++) {
+				for (int i = 0; i < 1000; i++) {
+					int key = random.nextInt(2000);
+					if (expected.size() > 500 && random.nextInt(round % 2 == 0 ? 4 : 2) != 0) {
+						Assert.assertEquals(expected.remove(key), btree.delete(key));
+					}
+					else {
+						Assert.assertEquals(expected.add(key), btree.add(key));
+					}
+				}
+				
+				Assert.assertEquals(expected.size(), btree.size());
+				List<Integer> keys = new ArrayList<>(expected);
+				for (int i = 0; i < keys.size(); i++) {
+					Assert.assertEquals(keys.get(i), btree.select(i));
+					Assert.assertEquals(i, btree.rank(keys.get(i)));
+				}
+				for (int i = 0; i < 100; i++) {
+					int from = random.nextInt(2000);
+					int to = from + random.nextInt(500);
+					Assert.assertEquals(expected.subSet(from, false, to, true).size(), btree.count(from, false, to, true));
+				}
+			}
+			btree.commit();
+			
+			Assert.assertEquals(expected.first(), btree.percentile(0));
+			Assert.assertEquals(expected.last(), btree.percentile(100));
+		}
+		
+		@Test
+		public void find_undecoded_test() {
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4);
+			BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			for (int i = 0; i < 1000; i += 2) {
+				btree.add(i);
+			}
+			
+			// reopen, so that find caches nodes without decoding them, then change the tree through those nodes
+			btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			for (int i = 0; i < 1000; i++) {
+				Assert.assertEquals(i % 2 == 0 ? Integer.valueOf(i) : null, btree.find(i));
+			}
+			for (int i = 0; i < 1000; i += 4) {
+				Assert.assertTrue(btree.delete(i));
+				Assert.assertTrue(btree.add(i + 1));
+			}
+			for (int i = 0; i < 1000; i++) {
+				Assert.assertEquals(i % 4 == 1 || i % 4 == 2 ? Integer.valueOf(i) : null, btree.find(i));
+			}
+			Assert.assertEquals(500, btree.size());
+		}
+		
+		@Test
+		public void read_ahead_test() throws IOException {
+			List<Integer> keys = new ArrayList<>();
+			for (int i = 0; i < 1000; i++) {
+				keys.add(i);
+			}
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4);
+			new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2).bulkLoad(keys, 0.8);
+			
+			try (AsyncBlockIO asyncBlockIO = new AsyncBlockIO(blockIO)) {
+				BTree<Integer> btree = new BTree<Integer>(asyncBlockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2, 0);
+				Assert.assertEquals(keys, toList(btree));
+				Assert.assertEquals(keys.subList(100, 901), toList(btree.range(100, true, 900, true)));
+				Assert.assertTrue(asyncBlockIO.prefetchHits() > 0);
+				
+				// a write drops the prefetched copy of the block
+				btree.delete(500);
+				Assert.assertEquals(keys.size() - 1, toList(btree).size());
+				Assert.assertNull(btree.find(500));
+			}
+		}
+		
+		@Test
+		public void buffer_pool_test() {
+			for (long cacheCapacity : new long[] {0, 8 * 100 * 4, 1024 * 100 * 4}) {
+				BTree<Integer> btree = new BTree<Integer>(new InMemoryBlockIO(100 * 4), new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2, cacheCapacity);
+				Random random = new Random(100);
+				for (int i = 0; i < 2000; i++) {
+					btree.add(random.nextInt(1000));
+					btree.find(random.nextInt(1000));
+				}
+				
+				// steady state: buffers are reused
+				long allocations = btree.bs.bufferPool().allocations();
+				for (int i = 0; i < 2000; i++) {
+					btree.add(random.nextInt(1000));
+					btree.delete(random.nextInt(1000));
+					btree.find(random.nextInt(1000));
+				}
+				Assert.assertEquals(allocations, btree.bs.bufferPool().allocations());
+			}
+		}
+		
+		@Test
+		public void defragment_test() {
+			BTree<Integer> btree = new BTree<Integer>(new InMemoryBlockIO(100 * 4), new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			TreeSet<Integer> expected = new TreeSet<>();
+			Random random = new Random(100);
+			for (int i = 0; i < 3000; i++) {
+				int key = random.nextInt(2000);
+				if (random.nextInt(3) == 0) {
+					expected.remove(key);
+					btree.delete(key);
+				}
+				else {
+					expected.add(key);
+					btree.add(key);
+				}
+			}
+			
+			// a pass over the leaves, interleaved with changes behind it
+			int calls = 0;
+			while (btree.defragment(10)) {
+				btree.delete(expected.pollFirst());
+				calls++;
+			}
+			Assert.assertTrue(calls > 1);
+			
+			List<Integer> leaves = new ArrayList<>();
+			collectLeaves(btree.root, leaves);
+			for (int i = 1; i < leaves.size(); i++) {
+				Assert.assertTrue(btree.bs.diskAddr(leaves.get(i - 1)) < btree.bs.diskAddr(leaves.get(i)));
+			}
+			Assert.assertEquals(new ArrayList<>(expected), toList(btree));
+			
+			for (Integer key : expected.headSet(1500)) {
+				btree.delete(key);
+			}
+			int stored = btree.bs.itemsStored();
+			while (btree.compact(50) > 0);
+			Assert.assertEquals(stored, btree.bs.itemsStored());
+			Assert.assertEquals(new ArrayList<>(expected.tailSet(1500)), toList(btree));
+		}
+		
+		@Test
+		public void dirty_nodes_test() {
+			final long[] writes = new long[1];
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4) {
+				@Override
+				public void writeBlock(int i, byte[] bytes) {
+					writes[0]++;
+					super.writeBlock(i, bytes);
+				}
+			};
+			BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2, 0);
+			TreeSet<Integer> expected = new TreeSet<>();
+			Random random = new Random(100);
+			
+			// nodes are only written at commit, once each
+			writes[0] = 0;
+			btree.begin();
+			for (int i = 0; i < 2000; i++) {
+				int key = random.nextInt(1000);
+				expected.add(key);
+				btree.add(key);
+				btree.find(random.nextInt(1000));
+			}
+			Assert.assertEquals(0, writes[0]);
+			btree.commit();
+			Assert.assertTrue(writes[0] < 2 * btree.bs.itemsStored());
+			
+			// a large transaction writes its changes before commit
+			btree.setMaxDirtyNodes(10);
+			writes[0] = 0;
+			btree.begin();
+			for (int i = 0; i < 1000; i++) {
+				int key = random.nextInt(1000);
+				expected.remove(key);
+				btree.delete(key);
+			}
+			Assert.assertTrue(writes[0] > 0);
+			btree.commit();
+			
+			btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2, 0);
+			Assert.assertEquals(new ArrayList<>(expected), toList(btree));
+		}
+		
+		@Test
+		public void bloom_filter_test() {
+			final long[] reads = new long[1];
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4) {
+				@Override
+				public void readBlock(int i, byte[] bytes) {
+					reads[0]++;
+					super.readBlock(i, bytes);
+				}
+			};
+			BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2, 0);
+			TreeSet<Integer> expected = new TreeSet<>();
+			btree.begin();
+			for (int i = 0; i < 4000; i += 2) {
+				expected.add(i);
+				btree.add(i);
+			}
+			btree.commit();
+			
+			reads[0] = 0;
+			for (int i = 1; i < 4000; i += 2) {
+				Assert.assertNull(btree.find(i));
+			}
+			long unfiltered = reads[0];
+			
+			// absent keys are mostly answered by the filter
+			int stored = btree.bs.itemsStored();
+			btree.setBloomFilter(10);
+			reads[0] = 0;
+			for (int i = 1; i < 4000; i += 2) {
+				Assert.assertNull(btree.find(i));
+			}
+			Assert.assertTrue(reads[0] * 10 < unfiltered);
+			
+			// the filter is kept up to date by add, and rebuilt a few keys at a time after as many changes as keys
+			BloomFilter<Integer> filter = btree.filter;
+			Random random = new Random(100);
+			int rebuildSteps = 0;
+			btree.begin();
+			for (int i = 0; i < 6000; i++) {
+				int key = random.nextInt(8000);
+				if (random.nextBoolean()) {
+					Assert.assertEquals(expected.add(key), btree.add(key));
+				}
+				else {
+					Assert.assertEquals(expected.remove(key), btree.delete(key));
+				}
+				if (btree.rebuiltFilter != null) {
+					rebuildSteps++;
+					Assert.assertEquals(expected.contains(key) ? Integer.valueOf(key) : null, btree.find(key));
+				}
+			}
+			btree.commit();
+			Assert.assertTrue(filter != btree.filter);
+			Assert.assertTrue(rebuildSteps > 1);
+			for (int i = 0; i < 8000; i++) {
+				Assert.assertEquals(expected.contains(i) ? Integer.valueOf(i) : null, btree.find(i));
+			}
+			
+			// a rollback restores the filter with the tree
+			btree.begin();
+			for (int i = 8000; i < 10000; i++) {
+				btree.add(i);
+			}
+			btree.rollback();
+			for (int i = 8000; i < 10000; i++) {
+				Assert.assertNull(btree.find(i));
+			}
+			
+			// the filter is persisted, and its blocks are read when they are used
+			reads[0] = 0;
+			btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2, 0);
+			Assert.assertNotNull(btree.filter);
+			Assert.assertTrue(reads[0] < btree.filter.capacity() * 10 / (100 * 4 * 8));
+			reads[0] = 0;
+			for (int i = 8000; i < 10000; i++) {
+				Assert.assertNull(btree.find(i));
+			}
+			Assert.assertTrue(reads[0] * 10 < unfiltered);
+			for (int i = 0; i < 8000; i++) {
+				Assert.assertEquals(expected.contains(i) ? Integer.valueOf(i) : null, btree.find(i));
+			}
+			
+			btree.setBloomFilter(0);
+			Assert.assertNull(btree.filter);
+			btree.begin();
+			for (int i = 0; i < 8000; i++) {
+				btree.delete(i);
+			}
+			for (int i = 0; i < 4000; i += 2) {
+				btree.add(i);
+			}
+			btree.commit();
+			Assert.assertTrue(btree.bs.itemsStored() <= stored);
+		}
+		
+		@Test
+		public void find_all_test() {
+			final long[] reads = new long[1];
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4) {
+				@Override
+				public void readBlock(int i, byte[] bytes) {
+					reads[0]++;
+					super.readBlock(i, bytes);
+				}
+			};
+			BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2, 0);
+			Random random = new Random(100);
+			btree.begin();
+			for (int i = 0; i < 3000; i++) {
+				btree.add(random.nextInt(6000));
+			}
+			btree.commit();
+			
+			// in input order, with duplicates and absent keys
+			Integer[] keys = new Integer[2000];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = random.nextInt(7000) - 500;
+			}
+			reads[0] = 0;
+			Integer[] found = btree.findAll(keys);
+			long batched = reads[0];
+			reads[0] = 0;
+			for (int i = 0; i < keys.length; i++) {
+				Assert.assertEquals(btree.find(keys[i]), found[i]);
+			}
+			Assert.assertTrue(batched * 2 < reads[0]);
+			
+			btree.setBloomFilter(10);
+			Assert.assertTrue(Arrays.equals(found, btree.findAll(keys)));
+			Assert.assertEquals(0, btree.findAll(new Integer[0]).length);
+		}
+		
+		@Test
+		public void append_test() {
+			// the leaves left behind by ascending inserts keep the append fill factor of their keys
+			for (double fillFactor : new double[] {1, 0.9}) {
+				InMemoryBlockIO blockIO = new InMemoryBlockIO(200 * 4);
+				BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 40, 19, 40, 19);
+				btree.setAppendFillFactor(fillFactor);
+				btree.begin();
+				for (int i = 0; i < 10000; i++) {
+					btree.add(i);
+				}
+				btree.commit();
+				Assert.assertTrue(btree.bs.itemsStored() <= 10000 / Math.round(40 * fillFactor - 2) + 10);
+			}
+			
+			// appends skip the descent while the last leaf stays in the cache, with late keys and deletes in between
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4);
+			BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2, 100 * 4 * 8);
+			TreeSet<Integer> expected = new TreeSet<>();
+			Random random = new Random(100);
+			btree.begin();
+			for (int i = 0; i < 5000; i++) {
+				int key = random.nextInt(10) == 0 ? i * 10 - random.nextInt(200) : i * 10;
+				Assert.assertEquals(expected.add(key), btree.add(key));
+				if (random.nextInt(10) == 0) {
+					int last = expected.pollLast();
+					Assert.assertTrue(btree.delete(last));
+				}
+			}
+			btree.commit();
+			Assert.assertEquals(expected.size(), btree.size());
+			Assert.assertEquals(new ArrayList<>(expected), toList(btree));
+			int index = 0;
+			for (int key : expected) {
+				Assert.assertEquals(index, btree.rank(key));
+				Assert.assertEquals(Integer.valueOf(key), btree.select(index++));
+			}
+		}
+		
+		@Test
+		public void snapshot_test() throws InterruptedException {
+			BTree<Integer> btree = new BTree<Integer>(new InMemoryBlockIO(100 * 4), new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			final TreeSet<Integer> expected = new TreeSet<>();
+			
+			// the root is shared by the threads reading a snapshot, even if it is a leaf
+			BTree<Integer>.Snapshot empty = btree.snapshot();
+			expected.add(1);
+			btree.add(1);
+			BTree<Integer>.Snapshot leaf = btree.snapshot();
+			Assert.assertNull(empty.find(1));
+			Assert.assertEquals(0, empty.size());
+			Assert.assertEquals(Integer.valueOf(1), leaf.find(1));
+			Assert.assertEquals(Integer.valueOf(1), leaf.find(1));
+			Assert.assertEquals(new ArrayList<>(expected), toList(leaf));
+			empty.close();
+			leaf.close();
+			
+			Random random = new Random(100);
+			for (int i = 0; i < 2000; i++) {
+				int key = random.nextInt(2000);
+				expected.add(key);
+				btree.add(key);
+			}
+			
+			// changes which are not committed are not visible
+			btree.begin();
+			btree.add(-1);
+			final BTree<Integer>.Snapshot snapshot = btree.snapshot();
+			btree.commit();
+			Assert.assertNull(snapshot.find(-1));
+			Assert.assertEquals(expected.size(), snapshot.size());
+			Assert.assertEquals(new ArrayList<>(expected.subSet(500, false, 1500, true).descendingSet()), toList(snapshot.descendingRange(1500, true, 500, false)));
+			
+			// readers keep reading the same keys while the tree is changed, defragmented and compacted
+			final AtomicBoolean done = new AtomicBoolean();
+			final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+			Thread[] readers = new Thread[4];
+			for (int t = 0; t < readers.length; t++) {
+				final Random readerRandom = new Random(t);
+				readers[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for (int rounds = 0; rounds < 2 || !done.get(); rounds++) {
+								Assert.assertEquals(new ArrayList<>(expected), toList(snapshot));
+								for (int k = 0; k < 100; k++) {
+									int key = readerRandom.nextInt(2000);
+									Assert.assertEquals(expected.contains(key) ? Integer.valueOf(key) : null, snapshot.find(key));
+								}
+							}
+						}
+						catch (Throwable e) {
+							errors.add(e);
+						}
+					}
+				};
+				readers[t].start();
+			}
+			
+			TreeSet<Integer> current = new TreeSet<>(expected);
+			current.add(-1);
+			for (int i = 0; i < 3000; i++) {
+				int key = random.nextInt(2000);
+				if (random.nextBoolean()) {
+					current.remove(key);
+					btree.delete(key);
+				}
+				else {
+					current.add(key);
+					btree.add(key);
+				}
+				if (i % 1000 == 999) {
+					while (btree.defragment(10));
+					btree.compact(100);
+				}
+			}
+			done.set(true);
+			for (Thread reader : readers) {
+				reader.join();
+			}
+			Assert.assertEquals(Collections.emptyList(), errors);
+			
+			snapshot.close();
+			while (btree.compact(100) > 0);
+			Assert.assertEquals(new ArrayList<>(current), toList(btree));
+			try {
+				snapshot.find(1);
+				Assert.fail();
+			}
+			catch (IllegalStateException e) {
+			}
+		}
+		
+		@Test
+		public void concurrent_writers_test() throws InterruptedException {
+			final InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4);
+			final BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			btree.setConcurrentWriters(true);
+			final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+			final List<TreeSet<Integer>> expected = new ArrayList<>();
+			
+			// each writer changes its own keys, in one transaction and then with group commit
+			for (int phase = 0; phase < 2; phase++) {
+				if (phase == 0) {
+					btree.begin();
+				}
+				else {
+					btree.setGroupCommit(true);
+				}
+				Thread[] writers = new Thread[4];
+				for (int t = 0; t < writers.length; t++) {
+					if (phase == 0) {
+						expected.add(new TreeSet<Integer>());
+					}
+					final int writer = t;
+					final TreeSet<Integer> keys = expected.get(t);
+					final Random random = new Random(phase * writers.length + t);
+					writers[t] = new Thread() {
+						@Override
+						public void run() {
+							try {
+								for (int i = 0; i < 3000; i++) {
+									int key = random.nextInt(1000) * 4 + writer;
+									if (random.nextInt(3) == 0) {
+										Assert.assertEquals(keys.remove(key), btree.delete(key));
+									}
+									else {
+										Assert.assertEquals(keys.add(key), btree.add(key));
+									}
+								}
+							}
+							catch (Throwable e) {
+								errors.add(e);
+							}
+						}
+					};
+					writers[t].start();
+				}
+				for (Thread writer : writers) {
+					writer.join();
+				}
+				if (phase == 0) {
+					btree.commit();
+				}
+			}
+			Assert.assertEquals(Collections.emptyList(), errors);
+			
+			TreeSet<Integer> all = new TreeSet<>();
+			for (TreeSet<Integer> keys : expected) {
+				all.addAll(keys);
+			}
+			List<Integer> sorted = new ArrayList<>(all);
+			Assert.assertEquals(sorted, toList(btree));
+			Assert.assertEquals(sorted.size(), btree.size());
+			
+			// the counts queued by the writers are committed
+			BTree<Integer> reopened = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			Assert.assertEquals(sorted, toList(reopened));
+			for (int i = 0; i < sorted.size(); i++) {
+				Assert.assertEquals(sorted.get(i), reopened.select(i));
+				Assert.assertEquals(i, reopened.rank(sorted.get(i)));
+			}
+		}
+		
+		@Test
+		public void transaction_test() {
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4);
+			BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			List<Integer> keys = new ArrayList<>();
+			btree.begin();
+			for (int i = 0; i < 100; i++) {
+				keys.add(i);
+				btree.add(i);
+			}
+			btree.commit();
+			
+			btree.begin();
+			for (int i = 0; i < 200; i++) {
+				if (i < 50) {
+					btree.delete(i);
+				}
+				else {
+					btree.add(i);
+				}
+			}
+			Assert.assertEquals(150, btree.size());
+			btree.rollback();
+			Assert.assertFalse(btree.inTransaction());
+			Assert.assertEquals(keys, toList(btree));
+			Assert.assertEquals(keys, toList(new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2)));
+			
+			btree.begin();
+			try {
+				btree.begin();
+				Assert.fail();
+			}
+			catch (IllegalStateException e) {
+			}
+			btree.commit();
+			try {
+				btree.commit();
+				Assert.fail();
+			}
+			catch (IllegalStateException e) {
+			}
+			try {
+				btree.rollback();
+				Assert.fail();
+			}
+			catch (IllegalStateException e) {
+			}
+		}
+		
+		@Test
+		public void group_commit_test() throws InterruptedException {
+			final InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4);
+			final BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			btree.setGroupCommit(true);
+			final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+			
+			// each add returns once it is committed
+			Thread[] writers = new Thread[4];
+			for (int t = 0; t < writers.length; t++) {
+				final int writer = t;
+				writers[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for (int i = 0; i < 500; i++) {
+								Assert.assertTrue(btree.add(i * 4 + writer));
+							}
+						}
+						catch (Throwable e) {
+							errors.add(e);
+						}
+					}
+				};
+				writers[t].start();
+			}
+			for (Thread writer : writers) {
+				writer.join();
+			}
+			Assert.assertEquals(Collections.emptyList(), errors);
+			
+			List<Integer> keys = new ArrayList<>();
+			for (int i = 0; i < 2000; i++) {
+				keys.add(i);
+			}
+			Assert.assertEquals(keys, toList(new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2)));
+		}
+		
+		@Test
+		public void group_commit_rollback_test() throws InterruptedException {
+			// a group commit writer which waits for its commit while another thread starts a transaction does not commit it
+			for (int trial = 0; trial < 5; trial++) {
+				final InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4);
+				final BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+				btree.setGroupCommit(true);
+				final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+				final AtomicBoolean done = new AtomicBoolean();
+				
+				Thread[] writers = new Thread[4];
+				for (int t = 0; t < writers.length; t++) {
+					final int writer = t;
+					writers[t] = new Thread() {
+						@Override
+						public void run() {
+							try {
+								for (int i = 0; !done.get(); i++) {
+									btree.add(i * 4 + writer);
+								}
+							}
+							catch (Throwable e) {
+								errors.add(e);
+							}
+						}
+					};
+					writers[t].start();
+				}
+				for (int tx = 0; tx < 100; tx++) {
+					btree.begin();
+					btree.add(-1 - 2 * tx);
+					Thread.yield();
+					btree.add(-2 - 2 * tx);
+					btree.rollback();
+				}
+				done.set(true);
+				for (Thread writer : writers) {
+					writer.join();
+				}
+				Assert.assertEquals(Collections.emptyList(), errors);
+				
+				List<Integer> keys = toList(btree);
+				Assert.assertTrue(keys.isEmpty() || keys.get(0) >= 0);
+				Assert.assertEquals(keys, toList(new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2)));
+			}
+		}
+		
+		@Test
+		public void node_cache_test() {
+			final int[] reads = new int[1];
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4) {
+				@Override
+				public void readBlock(int i, byte[] bytes) {
+					reads[0]++;
+					super.readBlock(i, bytes);
+				}
+			};
+			BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			btree.begin();
+			for (int i = 0; i < 1000; i++) {
+				btree.add(i);
+			}
+			btree.commit();
+			
+			// once the nodes are cached, repeated finds read nothing
+			for (long cacheCapacity : new long[] {1000 * 100 * 4, 0}) {
+				btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2, cacheCapacity);
+				for (int i = 0; i < 1000; i++) {
+					Assert.assertEquals(Integer.valueOf(i), btree.find(i));
+				}
+				reads[0] = 0;
+				for (int i = 0; i < 1000; i++) {
+					Assert.assertEquals(Integer.valueOf(i), btree.find(i));
+				}
+				if (cacheCapacity > 0) {
+					Assert.assertEquals(0, reads[0]);
+				}
+				else {
+					Assert.assertTrue(reads[0] >= 1000);
+				}
+			}
+		}
+		
+		@Test
+		public void split_test() {
+			// an inner node which splits keeps the children on each side of its middle key
+			BTree<Integer> btree = new BTree<Integer>(new InMemoryBlockIO(100 * 4), new IntegerSerializer(), new NaturalComparator<Integer>(), 3, 1, 3, 1);
+			TreeSet<Integer> expected = new TreeSet<>();
+			Random random = new Random(1);
+			btree.begin();
+			for (int i = 0; i < 300; i++) {
+				int key = random.nextInt(1000);
+				Assert.assertEquals(expected.add(key), btree.add(key));
+				checkStructure(btree);
+			}
+			btree.commit();
+			Assert.assertEquals(new ArrayList<>(expected), toList(btree));
+		}
+		
+		@Test
+		public void underflow_test() {
+			// a node which underflows borrows from, or merges with, the sibling on either side of its separator
+			BTree<Integer> btree = new BTree<Integer>(new InMemoryBlockIO(100 * 4), new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			List<Integer> keys = new ArrayList<>();
+			btree.begin();
+			for (int i = 0; i < 300; i++) {
+				keys.add(i);
+				btree.add(i);
+			}
+			Collections.shuffle(keys, new Random(1));
+			TreeSet<Integer> expected = new TreeSet<>(keys);
+			for (int key : keys) {
+				Assert.assertTrue(btree.delete(key));
+				expected.remove(key);
+				checkStructure(btree);
+				Assert.assertEquals(expected.size(), btree.size());
+			}
+			btree.commit();
+			Assert.assertEquals(0, btree.size());
+		}
+		
+		@Test
+		public void overflow_test() {
+			// a full node which rotates a key to a sibling hands searchKey to the side it belongs to
+			BTree<Integer> btree = new BTree<Integer>(new InMemoryBlockIO(100 * 4), new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			TreeSet<Integer> expected = new TreeSet<>();
+			Random random = new Random(1);
+			btree.begin();
+			for (int i = 0; i < 300; i++) {
+				int key = random.nextInt(1000);
+				Assert.assertEquals(expected.add(key), btree.add(key));
+				checkStructure(btree);
+				if (random.nextInt(4) == 0) {
+					key = random.nextInt(1000);
+					Assert.assertEquals(expected.remove(key), btree.delete(key));
+				}
+			}
+			btree.commit();
+			Assert.assertEquals(new ArrayList<>(expected), toList(btree));
+			for (int key = 0; key < 1000; key++) {
+				Assert.assertEquals(expected.contains(key) ? Integer.valueOf(key) : null, btree.find(key));
+			}
+		}
+		
+		/**
+		 * Check that the keys of every node are in order and within the bounds set by its parent, and that the subtree
+		 * sizes are exact.
+		 */
+		private static <K> void checkStructure(BTree<K> btree) {
+			if (btree.root != null) {
+				Assert.assertEquals(btree.root.size(), checkStructure(btree, btree.root, null, null));
+			}
+		}
+		
+		private static <K> int checkStructure(BTree<K> btree, BNode<K> u, K low, K high) {
+			u.decode();
+			for (int i = 0; i < u.last; i++) {
+				Assert.assertTrue(i == 0 ? low == null || btree.comparator.compare(low, u.keys[i]) < 0 : btree.comparator.compare(u.keys[i - 1], u.keys[i]) < 0);
+			}
+			Assert.assertTrue(u.last == 0 || high == null || btree.comparator.compare(u.keys[u.last - 1], high) < 0);
+			if (u.isLeaf) {
+				return u.last;
+			}
+			int size = u.last;
+			for (int i = 0; i <= u.last; i++) {
+				int childSize = checkStructure(btree, u.getChild(i), i == 0 ? low : u.keys[i - 1], i == u.last ? high : u.keys[i]);
+				Assert.assertEquals(childSize, u.subtreeSizes[i]);
+				size += childSize;
+			}
+			return size;
+		}
+		
+		@Test
+		public void concurrent_descent_test() throws InterruptedException {
+			final BTree<Integer> btree = new BTree<Integer>(new InMemoryBlockIO(100 * 4), new IntegerSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2);
+			btree.begin();
+			for (int i = 0; i < 1000; i += 2) {
+				btree.add(i);
+			}
+			btree.setConcurrentWriters(true);
+			
+			// leaf writers read the cache without locking it
+			final AtomicInteger added = new AtomicInteger();
+			Thread writer = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 1; i < 1000; i += 20) {
+						if (btree.add(i)) {
+							added.incrementAndGet();
+						}
+					}
+				}
+			};
+			synchronized (btree.cache) {
+				writer.start();
+				writer.join(10000);
+				Assert.assertEquals(50, added.get());
+			}
+			btree.commit();
+			Assert.assertEquals(550, btree.size());
+		}
+		
+		private static <K> void collectLeaves(BNode<K> u, List<Integer> leaves) {
+			if (u.isLeaf) {
+				leaves.add(u.blockAddr);
+				return;
+			}
+			for (int i = 0; i <= u.last; i++) {
+				collectLeaves(u.getChild(i), leaves);
+			}
+		}
+		
+		private static <K> List<K> toList(Iterable<K> iterable) {
+			List<K> result = new ArrayList<>();
+			for (K key : iterable) {
+				result.add(key);
+			}
+			return result;
+		}
+		
+	}
+	
 }
@@ -0,0 +1,454 @@
+package net.tp.algo.btree;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+
+import junit.framework.Assert;
+
+import net.tp.algo.util.NaturalComparator;
+
+import org.junit.Test;
+
+/**
+ * Sorted map stored in a {@link BTree}. Each key is stored in the tree together with its value.
+ *
+ * A value of at most maxInlineSize serialized bytes is stored in the node, next to its key. A larger value is stored
+ * in a chain of overflow blocks in the block store and the node only keeps the address of the first block. Every
+ * key takes the same slot size in a node, so the node orders must be chosen such that
+ * (key size + 4 + max(maxInlineSize, 4)) * order, plus the children of inner nodes, fits in a block.
+ *
+ * get, put, putIfAbsent, compute and remove each take a single descent from the root, and are committed like
+ * {@link BTree#add(Object)}.
+ *
+ * @author Trung Phan
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class BTreeMap<K, V> {
+
+	private static final int OVERFLOW_HEADER_SIZE = 8; // next, length
+
+	private final BTree<Entry<K, V>> tree;
+	private final Serializer<V> valueSerializer;
+	private final int maxInlineSize;
+
+	public BTreeMap(BlockIO blockIO, Serializer<K> keySerializer, Serializer<V> valueSerializer, Comparator<? super K> comparator, int innerOrder, int innerLowWaterMark, int leafOrder, int leafLowWaterMark, int maxInlineSize) {
+		this(blockIO, keySerializer, valueSerializer, comparator, innerOrder, innerLowWaterMark, leafOrder, leafLowWaterMark, maxInlineSize, (long)BTree.DEFAULT_CACHE_BLOCKS * blockIO.blocksize());
+	}
+
+	/**
+	 *
+	 * @param maxInlineSize values up to this many serialized bytes are stored in the node
+	 * @param cacheCapacity capacity of the node cache in bytes; 0 disables the cache.
+	 */
+	public BTreeMap(BlockIO blockIO, Serializer<K> keySerializer, Serializer<V> valueSerializer, Comparator<? super K> comparator, int innerOrder, int innerLowWaterMark, int leafOrder, int leafLowWaterMark, int maxInlineSize, long cacheCapacity) {
+		if (maxInlineSize < 0 || blockIO.blocksize() <= OVERFLOW_HEADER_SIZE) {
+			throw new IllegalArgumentException();
+		}
+		this.valueSerializer = valueSerializer;
+		this.maxInlineSize = maxInlineSize;
+
+		Serializer<Entry<K, V>> entrySerializer = keySerializer instanceof FixedSizeSerializer
+				? new FixedSizeEntrySerializer<>((FixedSizeSerializer<K>)keySerializer, maxInlineSize)
+				: new EntrySerializer<>(keySerializer, maxInlineSize);
+		this.tree = new BTree<>(blockIO, entrySerializer, new EntryComparator<K, V>(comparator), innerOrder, innerLowWaterMark, leafOrder, leafLowWaterMark, cacheCapacity);
+	}
+
+	public int size() {
+		return tree.size();
+	}
+
+	public void begin() {
+		tree.begin();
+	}
+
+	public void commit() {
+		tree.commit();
+	}
+
+	public void rollback() {
+		tree.rollback();
+	}
+
+	public V get(K key) {
+		synchronized (tree) {
+			Entry<K, V> entry = tree.find(new Entry<K, V>(key));
+			return entry != null ? value(entry) : null;
+		}
+	}
+
+	public boolean containsKey(K key) {
+		return tree.find(new Entry<K, V>(key)) != null;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @param value
+	 * @return the previous value, or null
+	 */
+	public V put(K key, final V value) {
+		checkValue(value);
+		Remapping remapping = new Remapping(key, new BiFunction<K, V, V>() {
+			@Override
+			public V apply(K k, V oldValue) {
+				return value;
+			}
+		});
+		tree.update(remapping.probe, remapping, false);
+		return remapping.oldValue;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @param value
+	 * @return the current value, or null if value is added
+	 */
+	public V putIfAbsent(K key, final V value) {
+		checkValue(value);
+		Remapping remapping = new Remapping(key, new BiFunction<K, V, V>() {
+			@Override
+			public V apply(K k, V oldValue) {
+				return oldValue != null ? oldValue : value;
+			}
+		});
+		tree.update(remapping.probe, remapping, false);
+		return remapping.oldValue;
+	}
+
+	/**
+	 * Same as {@link java.util.Map#compute(Object, BiFunction)}, but atomic and in a single descent. Like a failed
+	 * add, an exception thrown by the function rolls back and ends the current transaction.
+	 *
+	 * @param key
+	 * @param function called once with the key and the current value or null; returns the new value or null to remove the key
+	 * @return the new value
+	 */
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+		Remapping remapping = new Remapping(key, function);
+		tree.update(remapping.probe, remapping, false);
+		return remapping.newValue;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return the removed value, or null
+	 */
+	public V remove(K key) {
+		Remapping remapping = new Remapping(key, new BiFunction<K, V, V>() {
+			@Override
+			public V apply(K k, V oldValue) {
+				return null;
+			}
+		});
+		tree.update(remapping.probe, remapping, true);
+		return remapping.oldValue;
+	}
+
+	private void checkValue(V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Value cannot be null.");
+		}
+	}
+
+	/**
+	 * Turns the function on values into a remapping of tree entries. It runs inside the tree's update, so the
+	 * overflow blocks it allocates and frees are committed or rolled back with it.
+	 */
+	private class Remapping implements UnaryOperator<Entry<K, V>> {
+
+		private final Entry<K, V> probe;
+		private final BiFunction<? super K, ? super V, ? extends V> function;
+		private V oldValue;
+		private V newValue;
+
+		private Remapping(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+			this.probe = new Entry<>(key);
+			this.function = function;
+		}
+
+		@Override
+		public Entry<K, V> apply(Entry<K, V> existing) {
+			oldValue = existing != null ? value(existing) : null;
+			newValue = function.apply(probe.key, oldValue);
+			if (existing != null && newValue == oldValue) {
+				return existing;
+			}
+
+			if (existing != null) {
+				freeOverflow(existing.overflowAddr);
+			}
+			return newValue != null ? newEntry(probe.key, newValue) : null;
+		}
+
+	}
+
+	private Entry<K, V> newEntry(K key, V value) {
+		Entry<K, V> entry = new Entry<>(key);
+		byte[] bytes = encode(value);
+		entry.length = bytes.length;
+		if (bytes.length <= maxInlineSize) {
+			entry.bytes = bytes;
+		}
+		else {
+			entry.overflowAddr = writeOverflow(bytes);
+		}
+		return entry;
+	}
+
+	private V value(Entry<K, V> entry) {
+		byte[] bytes = entry.bytes != null ? entry.bytes : readOverflow(entry.overflowAddr, entry.length);
+		return valueSerializer.read(ByteBuffer.wrap(bytes));
+	}
+
+	private byte[] encode(V value) {
+		for (int size = Math.max(64, maxInlineSize); ; size *= 2) {
+			ByteBuffer bb = ByteBuffer.allocate(size);
+			try {
+				valueSerializer.write(bb, value);
+				return Arrays.copyOf(bb.array(), bb.position());
+			} catch (BufferOverflowException e) {
+				// try again with a larger buffer
+			}
+		}
+	}
+
+	/**
+	 * Each overflow block holds the address of the next block (0 for the last), the number of bytes it holds, and the bytes.
+	 * The blocks of a chain are allocated as one run, so that the value is read sequentially.
+	 * @param bytes
+	 * @return address of the first block
+	 */
+	private int writeOverflow(byte[] bytes) {
+		BlockStore bs = tree.blockStore();
+		int capacity = bs.blocksize() - OVERFLOW_HEADER_SIZE;
+		int n = Math.max(1, (bytes.length + capacity - 1) / capacity);
+		int first = bs.allocateBlocks(n, 0);
+		ByteBuffer bb = bs.bufferPool().acquire();
+		for (int k = 0; k < n; k++) {
+			bb.clear();
+			int start = k * capacity;
+			int length = Math.min(capacity, bytes.length - start);
+			bb.putInt(k + 1 < n ? first + k + 1 : 0);
+			bb.putInt(length);
+			bb.put(bytes, start, length);
+			Arrays.fill(bb.array(), bb.position(), bb.capacity(), (byte)0);
+			bs.writeBlock(first + k, bb.array());
+		}
+		bs.bufferPool().release(bb);
+		return first;
+	}
+
+	private byte[] readOverflow(int addr, int length) {
+		BlockStore bs = tree.blockStore();
+		byte[] result = new byte[length];
+		ByteBuffer bb = bs.bufferPool().acquire();
+		for (int pos = 0; addr != 0; ) {
+			bb.clear();
+			bs.readBlock(addr, bb.array());
+			addr = bb.getInt();
+			int n = bb.getInt();
+			bb.get(result, pos, n);
+			pos += n;
+		}
+		bs.bufferPool().release(bb);
+		return result;
+	}
+
+	private void freeOverflow(int addr) {
+		BlockStore bs = tree.blockStore();
+		ByteBuffer bb = bs.bufferPool().acquire();
+		while (addr != 0) {
+			bs.readBlock(addr, bb.array());
+			bs.freeBlock(addr);
+			addr = bb.getInt(0);
+		}
+		bs.bufferPool().release(bb);
+	}
+
+	/**
+	 * Key and serialized value; a value which is not inline is in the overflow chain starting at overflowAddr.
+	 */
+	private static class Entry<K, V> {
+
+		private final K key;
+		private int length;
+		private byte[] bytes;
+		private int overflowAddr;
+
+		private Entry(K key) {
+			this.key = key;
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(key);
+		}
+	}
+
+	private static class EntryComparator<K, V> implements Comparator<Entry<K, V>> {
+
+		private final Comparator<? super K> comparator;
+
+		private EntryComparator(Comparator<? super K> comparator) {
+			this.comparator = comparator;
+		}
+
+		@Override
+		public int compare(Entry<K, V> o1, Entry<K, V> o2) {
+			return comparator.compare(o1.key, o2.key);
+		}
+	}
+
+	/**
+	 * Writes the key, the length of the value, then a slot of max(maxInlineSize, 4) bytes holding either the value
+	 * or the address of its overflow chain. Unused node slots are written as null.
+	 */
+	private static class EntrySerializer<K, V> implements Serializer<Entry<K, V>> {
+
+		private final Serializer<K> keySerializer;
+		private final int maxInlineSize;
+		private final int slotSize;
+
+		private EntrySerializer(Serializer<K> keySerializer, int maxInlineSize) {
+			this.keySerializer = keySerializer;
+			this.maxInlineSize = maxInlineSize;
+			this.slotSize = Math.max(maxInlineSize, 4);
+		}
+
+		@Override
+		public Entry<K, V> read(ByteBuffer bb) {
+			Entry<K, V> entry = new Entry<>(keySerializer.read(bb));
+			entry.length = bb.getInt();
+			int end = bb.position() + slotSize;
+			if (entry.length <= maxInlineSize) {
+				entry.bytes = new byte[entry.length];
+				bb.get(entry.bytes);
+			}
+			else {
+				entry.overflowAddr = bb.getInt();
+			}
+			bb.position(end);
+			return entry;
+		}
+
+		@Override
+		public void write(ByteBuffer bb, Entry<K, V> entry) {
+			keySerializer.write(bb, entry != null ? entry.key : null);
+			bb.putInt(entry != null ? entry.length : 0);
+			int end = bb.position() + slotSize;
+			if (entry != null) {
+				if (entry.bytes != null) {
+					bb.put(entry.bytes);
+				}
+				else {
+					bb.putInt(entry.overflowAddr);
+				}
+			}
+			bb.position(end);
+		}
+	}
+
+	private static class FixedSizeEntrySerializer<K, V> extends EntrySerializer<K, V> implements FixedSizeSerializer<Entry<K, V>> {
+
+		private final int size;
+
+		private FixedSizeEntrySerializer(FixedSizeSerializer<K> keySerializer, int maxInlineSize) {
+			super(keySerializer, maxInlineSize);
+			this.size = keySerializer.size() + 4 + Math.max(maxInlineSize, 4);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 *
+	 * Test Cases
+	 *
+	 * @author Trung Phan
+	 *
+	 */
+	public static class TestCase {
+
+		@Test
+		public void map_test() {
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(100 * 4);
+			BTreeMap<Integer, String> map = new BTreeMap<>(blockIO, new IntegerSerializer(), new StringSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2, 16);
+			TreeMap<Integer, String> expected = new TreeMap<>();
+
+			Random random = new Random(100);
+			for (int i = 0; i < 3000; i++) {
+				int key = random.nextInt(300);
+				String value = random.nextInt(4) == 0 ? repeat(key, random.nextInt(200)) : String.valueOf(i);
+				switch (random.nextInt(5)) {
+				case 0:
+					Assert.assertEquals(expected.remove(key), map.remove(key));
+					break;
+				case 1:
+					Assert.assertEquals(expected.putIfAbsent(key, value), map.putIfAbsent(key, value));
+					break;
+				case 2:
+					BiFunction<Integer, String, String> append = new BiFunction<Integer, String, String>() {
+						@Override
+						public String apply(Integer k, String v) {
+							return v == null ? "0" : v.length() > 300 ? null : v + k;
+						}
+					};
+					Assert.assertEquals(expected.compute(key, append), map.compute(key, append));
+					break;
+				default:
+					Assert.assertEquals(expected.put(key, value), map.put(key, value));
+				}
+				Assert.assertEquals(expected.size(), map.size());
+			}
+
+			// reopen
+			map = new BTreeMap<>(blockIO, new IntegerSerializer(), new StringSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2, 16);
+			for (int key = 0; key < 300; key++) {
+				Assert.assertEquals(expected.get(key), map.get(key));
+				Assert.assertEquals(expected.containsKey(key), map.containsKey(key));
+			}
+
+			// overflow blocks are freed with their values: only the metadata block and the empty root are left
+			for (int key = 0; key < 300; key++) {
+				map.remove(key);
+			}
+			Assert.assertEquals(0, map.size());
+			Assert.assertEquals(2, map.tree.blockStore().itemsStored());
+		}
+
+		@Test
+		public void rollback_test() {
+			BTreeMap<Integer, String> map = new BTreeMap<>(new InMemoryBlockIO(100 * 4), new IntegerSerializer(), new StringSerializer(), new NaturalComparator<Integer>(), 5, 2, 5, 2, 16);
+			map.put(1, repeat(1, 100));
+			map.begin();
+			map.put(1, repeat(2, 100));
+			map.put(2, repeat(3, 100));
+			map.rollback();
+			Assert.assertEquals(repeat(1, 100), map.get(1));
+			Assert.assertNull(map.get(2));
+		}
+
+		private static String repeat(int key, int times) {
+			StringBuilder result = new StringBuilder();
+			for (int i = 0; i < times; i++) {
+				result.append(key);
+			}
+			return result.toString();
+		}
+
+	}
+
+}
@@ -0,0 +1,96 @@
+package net.tp.algo.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.tp.algo.util.NaturalComparator;
+
+/**
+ * Throughput of concurrent writers: 75% add and 25% delete of random keys in a file backed tree of 500K keys, at
+ * 1, 4, 16 and 32 writer threads, with and without {@link BTree#setConcurrentWriters(boolean)}, in one transaction
+ * and with group commit.
+ *
+ * @author Trung Phan
+ *
+ */
+public class BTreeRunner {
+
+	private static final int KEYS = 500000;
+	private static final int[] THREADS = {1, 4, 16, 32};
+
+	public static void main(String ... args) throws IOException, InterruptedException {
+
+		test(4, true, true, 640000); // warm up
+		System.out.println(String.format("%20s %12s %12s %12s %12s", "ops/s", "1", "4", "16", "32"));
+		for (boolean transaction : new boolean[] {true, false}) {
+			for (boolean concurrentWriters : new boolean[] {false, true}) {
+				StringBuilder line = new StringBuilder(String.format("%20s", (transaction ? "transaction" : "group commit") + (concurrentWriters ? ", conc" : ", lock")));
+				for (int threads : THREADS) {
+					line.append(String.format(" %12.0f", test(threads, transaction, concurrentWriters, transaction ? 640000 : 32000)));
+				}
+				System.out.println(line);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return operations per second
+	 */
+	private static double test(int threads, boolean transaction, boolean concurrentWriters, int operations) throws IOException, InterruptedException {
+		File file = File.createTempFile("btree", ".bin");
+		file.deleteOnExit();
+		try (FileBackedBlockIO blockIO = new FileBackedBlockIO(file, 4096)) {
+			final BTree<Integer> btree = new BTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 255, 127, 1000, 499);
+			List<Integer> keys = new ArrayList<>();
+			for (int i = 0; i < KEYS; i++) {
+				keys.add(i * 4);
+			}
+			btree.bulkLoad(keys, 0.7);
+			btree.setConcurrentWriters(concurrentWriters);
+			btree.setGroupCommit(!transaction);
+
+			final int perThread = operations / threads;
+			Thread[] writers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final Random random = new Random(t);
+				writers[t] = new Thread() {
+					@Override
+					public void run() {
+						for (int i = 0; i < perThread; i++) {
+							int key = random.nextInt(KEYS * 4);
+							if (random.nextInt(4) == 0) {
+								btree.delete(key);
+							}
+							else {
+								btree.add(key);
+							}
+						}
+					}
+				};
+			}
+
+			if (transaction) {
+				btree.begin();
+			}
+			long startTime = System.nanoTime();
+			for (Thread writer : writers) {
+				writer.start();
+			}
+			for (Thread writer : writers) {
+				writer.join();
+			}
+			if (transaction) {
+				btree.commit();
+			}
+			return perThread * threads * 1e9 / (System.nanoTime() - startTime);
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+}
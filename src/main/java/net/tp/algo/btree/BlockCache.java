@@ -0,0 +1,136 @@
+package net.tp.algo.btree;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of decoded blocks, keyed by logical block address.
+ *
+ * Unpinned entries are evicted in LRU order once the capacity (measured in bytes, i.e. number of entries times
+ * the block size) is exceeded. Pinned entries (the root and inner nodes of a tree) are never evicted, but they
+ * still count toward the capacity. A capacity of 0 disables caching.
+ *
+ * The cache is not thread-safe, except that {@link #peek(int)} and {@link #contains(int)} do not change it: threads may
+ * call them concurrently while no one else changes the cache.
+ *
+ * @author Trung Phan
+ *
+ * @param <V>
+ */
+public class BlockCache<V> {
+
+	private final int blocksize;
+	private long capacity;
+
+	private final Map<Integer, V> pinned;
+	private final LinkedHashMap<Integer, V> lru;
+
+	private long hits;
+	private long misses;
+
+	public BlockCache(int blocksize, long capacity) {
+		if (blocksize <= 0 || capacity < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.blocksize = blocksize;
+		this.capacity = capacity;
+		this.pinned = new HashMap<>();
+		this.lru = new LinkedHashMap<>(); // insertion order, and get moves an entry to the end
+	}
+
+	public V get(int addr) {
+		V value = pinned.get(addr);
+		if (value == null) {
+			value = lru.remove(addr);
+			if (value != null) {
+				lru.put(addr, value);
+			}
+		}
+		if (value == null) {
+			misses++;
+		}
+		else {
+			hits++;
+		}
+		return value;
+	}
+
+	public void put(int addr, V value, boolean pin) {
+		if (capacity == 0) {
+			return;
+		}
+
+		remove(addr);
+		if (pin) {
+			pinned.put(addr, value);
+		}
+		else {
+			lru.put(addr, value);
+		}
+		evict();
+	}
+
+	/**
+	 * Unlike {@link #get(int)}, neither counts as a hit or miss nor changes the LRU order.
+	 */
+	public V peek(int addr) {
+		V value = pinned.get(addr);
+		return value != null ? value : lru.get(addr);
+	}
+
+	/**
+	 * Unlike {@link #get(int)}, neither counts as a hit or miss nor changes the LRU order.
+	 */
+	public boolean contains(int addr) {
+		return pinned.containsKey(addr) || lru.containsKey(addr);
+	}
+
+	public V remove(int addr) {
+		V value = pinned.remove(addr);
+		V value2 = lru.remove(addr);
+		return value != null ? value : value2;
+	}
+
+	public void clear() {
+		pinned.clear();
+		lru.clear();
+	}
+
+	public int size() {
+		return pinned.size() + lru.size();
+	}
+
+	public long capacity() {
+		return capacity;
+	}
+
+	public void setCapacity(long capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.capacity = capacity;
+		if (capacity == 0) {
+			clear();
+		}
+		evict();
+	}
+
+	public long hits() {
+		return hits;
+	}
+
+	public long misses() {
+		return misses;
+	}
+
+	private void evict() {
+		Iterator<V> it = lru.values().iterator();
+		while ((long)size() * blocksize > capacity && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+}
@@ -6,4 +6,12 @@ public interface BlockIO {
 	public void readBlock(int i, byte[] bytes);
 	public void writeBlock(int i, byte[] bytes);
 	public void flush();
+	
+	/**
+	 * Discard the blocks from index blocks on, e.g. shrink the file. Their content is undefined afterward until they are written again,
+	 * so by default they are simply kept.
+	 * @param blocks
+	 */
+	public default void truncate(int blocks) {
+	}
 }
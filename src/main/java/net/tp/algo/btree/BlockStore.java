@@ -2,18 +2,15 @@ package net.tp.algo.btree;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
-import java.util.Set;
 
 import junit.framework.Assert;
 
@@ -27,47 +24,137 @@ import org.junit.Test;
  */
 public class BlockStore {
 	
-	private int addrSeq;
+	/**
+	 * Default number of log blocks after which the write-ahead log is checkpointed.
+	 */
+	public static final int DEFAULT_CHECKPOINT_BLOCKS = 4096;
 	
-	private transient List<Integer> metaBlocksForFreeList; // list of logical address to manage free list
-	private transient List<Integer> metaBlocksForDictMap; // list of logical address to manage dictionary
+	private int addrSeq;
 	
 	private int prevMaxBlocks;
-	private Set<Integer> prevFreeBlocks;
-	private Map<Integer, Integer> prevDictMap;
+	private PagedIntArray prevDictMap;
+	
+	private int prevItems;
+	private int items; // number of logical blocks
 	
 	private int maxBlocks;
-	private Set<Integer> freeBlocks;
-	private Map<Integer, Integer> dictMap;
+	private int fileBlocks; // blocks written to the BlockIO, which may be more than maxBlocks until it is truncated
+	private PagedIntArray dictMap; // logical address -> disk address
+	private PagedIntArray diskMap; // disk address -> logical address, the inverse of dictMap
+	private PagedIntArray prevDiskMap;
+	private int compactTarget; // the next checkpoint rewrites the pages from this disk address on, see compact
+	
+	/**
+	 * The dictionary is persisted as a radix tree of page blocks. A page at level 0 maps a range of logical
+	 * addresses to disk addresses; a page at level k maps a range of page indexes at level k-1 to the disk addresses
+	 * of those pages. The root is the only page at level depth. Pages are copy on write: commit only rewrites the
+	 * pages that changed and their ancestors, so its cost is proportional to the number of blocks changed.
+	 */
+	private int prevDepth;
+	private List<PagedIntArray> prevPageAddrs; // per level: page index -> disk address
+	
+	private int depth;
+	private List<PagedIntArray> pageAddrs;
+	private List<BitSet> dirtyPages; // per level: index of pages to be rewritten
+	private List<BitSet> prevDirtyPages;
+	
+	/**
+	 * Opening only reads the superblock. A page is read the first time an address under it is used, together with
+	 * its ancestors, into both the current and the committed dictionary, since it has not changed since the last
+	 * checkpoint. Until {@link #scrub(int)} has read all pages, the free blocks are only the ones freed since the
+	 * store was opened, and new blocks are added at the end of the file.
+	 */
+	private List<BitSet> loadedPages; // per level: pages read, or known not to exist
+	private volatile boolean scrubbed; // read by snapshots without the lock
+	private int scrubLevel; // next page to read by scrub
+	private int scrubIndex;
+	private int openBlocks; // maxBlocks when the store was opened: the blocks from it on were all allocated since
 	
 	private boolean changed = false;
 	
+	private BitSet freeBlocks;
+	
 	/**
-	 * safeFreeBlock is the intersection between prevFreeBlocks and freeBlocks.
+	 * safeFreeBlock is the intersection between the free blocks of the last commit and freeBlocks.
 	 * It's maintained here to guarantee O(1) time to get freeblock
 	 */
-	private Set<Integer> safeFreeBlocks;
+	private BitSet safeFreeBlocks;
+	
+	/**
+	 * Every change of freeBlocks since the last commit, encoded as (diskAddr << 1 | old bit), so that rollback
+	 * and commit are proportional to the number of changes instead of the number of blocks.
+	 */
+	private long[] freeJournal = new long[16];
+	private int freeJournalSize;
+	
+	/**
+	 * A snapshot pins the committed version it was taken of. The disk blocks freed by later commits are not made
+	 * safe to reuse until every snapshot taken before them is released: each commit which frees blocks while
+	 * snapshots are open queues them as one batch, headed by its version. Meanwhile the file is not shrunk.
+	 */
+	private int version; // incremented by each commit
+	private final List<Snapshot> snapshots = new ArrayList<>(); // open snapshots, oldest first
+	private final ArrayDeque<int[]> pinnedFrees = new ArrayDeque<>();
 	
 	private final BlockIO blockIO;
+	private final BufferPool bufferPool;
+	
+	/**
+	 * With a write-ahead log, commit appends the images of the blocks written since the last commit to the log and
+	 * forces only the log. The page table and the superblock are written by the next checkpoint, once the log
+	 * grows beyond checkpointBlocks. Until then, copy on write still protects the blocks of the last checkpoint:
+	 * a block can only be reused after the block it belongs to was written again, and so logged.
+	 */
+	private final WriteAheadLog log;
+	private final int checkpointBlocks;
+	private int generation; // incremented by each checkpoint; log records of older generations are stale
+	private final Map<Integer, ByteBuffer> writtenImages = new HashMap<>(); // logical address -> image written since the last commit, from the buffer pool
+	private BitSet freedBlocks = new BitSet(); // logical addresses of the last commit freed since then
 	
 	public BlockStore(BlockIO blockIO) {
+		this(blockIO, null, 0);
+	}
+	
+	public BlockStore(BlockIO blockIO, BlockIO logIO) {
+		this(blockIO, logIO, DEFAULT_CHECKPOINT_BLOCKS);
+	}
+	
+	/**
+	 * 
+	 * @param blockIO
+	 * @param logIO write-ahead log, or null to commit by writing the page table
+	 * @param checkpointBlocks size of the log in blocks which triggers a checkpoint
+	 */
+	public BlockStore(BlockIO blockIO, BlockIO logIO, int checkpointBlocks) {
 		
-		this.blockIO = blockIO;
+		if (blockIO == null || blockIO.blocksize() <= 0) {
+			throw new IllegalArgumentException();
+		}
 		
 		if (blockIO.blocksize() < 10 * 4) {
 			throw new IllegalStateException("Block size is not enough to manage overhead: " + blockIO.blocksize());
 		}
 		
-		if (blockIO == null || blockIO.blocksize() <= 0) {
+		if (logIO != null && (logIO.blocksize() != blockIO.blocksize() || checkpointBlocks <= 0)) {
 			throw new IllegalArgumentException();
 		}
 		
-		this.prevDictMap = new HashMap<>();
-		this.prevFreeBlocks = new HashSet<>();
-		this.metaBlocksForFreeList = new ArrayList<>();
-		this.metaBlocksForDictMap = new ArrayList<>();
+		this.blockIO = blockIO;
+		this.bufferPool = new BufferPool(blockIO.blocksize());
+		this.log = logIO != null ? new WriteAheadLog(logIO) : null;
+		this.checkpointBlocks = checkpointBlocks;
 		
 		readMetaData();
+		if (log != null) {
+			recover();
+		}
+	}
+	
+	/**
+	 * number of entries per page of the page table
+	 */
+	private int entriesPerPage() {
+		return blockIO.blocksize() / 4;
 	}
 	
 	private void readMetaData() {
@@ -81,196 +168,696 @@ public class BlockStore {
 			this.prevMaxBlocks = 1;
 		}
 		this.maxBlocks = this.prevMaxBlocks;
+		this.fileBlocks = this.maxBlocks;
 		this.addrSeq = bb.getInt();
+		this.depth = bb.getInt();
+		int rootAddr = bb.getInt();
+		this.generation = bb.getInt();
+		this.items = bb.getInt();
 		
-		int dictBlockIndex = bb.getInt();
-		int freeBlockIndex = bb.getInt();
+		if (rootAddr >= maxBlocks) {
+			throw new IllegalStateException("Root page is out of range: " + rootAddr);
+		}
+		
+		this.dictMap = new PagedIntArray(entriesPerPage());
+		this.diskMap = new PagedIntArray(entriesPerPage());
+		this.pageAddrs = new ArrayList<>();
+		this.dirtyPages = new ArrayList<>();
+		this.loadedPages = new ArrayList<>();
+		for (int level = 0; level <= depth; level++) {
+			this.pageAddrs.add(new PagedIntArray(entriesPerPage()));
+			this.dirtyPages.add(new BitSet());
+			this.loadedPages.add(new BitSet());
+		}
+		if (rootAddr > 0) {
+			this.pageAddrs.get(depth).set(0, rootAddr);
+		}
+		this.freeBlocks = new BitSet();
+		this.safeFreeBlocks = new BitSet();
 		
-		Set<Integer> metaBlocks = new HashSet<>();
+		this.prevDepth = this.depth;
+		this.prevItems = this.items;
+		this.prevDictMap = this.dictMap.snapshot();
+		this.prevDiskMap = this.diskMap.snapshot();
+		this.prevPageAddrs = snapshot(this.pageAddrs);
+		this.prevDirtyPages = copy(this.dirtyPages);
 		
-		this.prevDictMap = l2m(loadIntArray(blockIO, dictBlockIndex, metaBlocks));
-		this.dictMap = new HashMap<>(this.prevDictMap);
-		for (Map.Entry<Integer, Integer> entry : this.dictMap.entrySet()) {
-			if (metaBlocks.contains(entry.getValue())) {
-				this.metaBlocksForDictMap.add(entry.getKey());
+		this.scrubbed = false;
+		this.scrubLevel = depth;
+		this.scrubIndex = 0;
+		this.openBlocks = this.maxBlocks;
+		if (rootAddr == 0) {
+			scrub(1);
+		}
+	}
+	
+	/**
+	 * Replay the records of the log on top of the last checkpoint, then checkpoint them.
+	 */
+	private void recover() {
+		log.reset();
+		for (WriteAheadLog.Record record = log.next(generation); record != null; record = log.next(generation)) {
+			for (int k = 0; k < record.written.length; k++) {
+				restoreBlock(record.written[k], record.images[k]);
+			}
+			for (int addr : record.freed) {
+				if (hasBlock(addr)) {
+					freeBlock(addr);
+				}
 			}
+			if (record.addrSeq > this.addrSeq) {
+				this.addrSeq = record.addrSeq;
+				this.changed = true;
+			}
+		}
+		if (log.position() > 0) {
+			checkpoint();
+		}
+	}
+	
+	/**
+	 * Write a logged block image at its logical address, which may not exist in the last checkpoint.
+	 */
+	private void restoreBlock(int i, byte[] bytes) {
+		if (hasBlock(i)) {
+			writeBlock(i, bytes);
+			return;
+		}
+		int diskAddr = newDiskBlock();
+		setFree(diskAddr, false);
+		this.safeFreeBlocks.clear(diskAddr);
+		this.dictMap.set(i, diskAddr);
+		this.diskMap.set(diskAddr, i);
+		this.items++;
+		markDirty(i);
+		blockIO.writeBlock(diskAddr, bytes);
+	}
+	
+	/**
+	 * Read the pages on the path to logical address i, unless they are loaded.
+	 */
+	private void load(int i) {
+		if (scrubbed || i <= 0) {
+			return;
+		}
+		int n = entriesPerPage();
+		if (this.loadedPages.get(0).get(i / n)) {
+			return;
 		}
 		
-		metaBlocks.clear();
-		this.prevFreeBlocks = new HashSet<>(loadIntArray(blockIO, freeBlockIndex, metaBlocks));
-		this.freeBlocks = new HashSet<>(this.prevFreeBlocks);
-
-		for (Map.Entry<Integer, Integer> entry : this.dictMap.entrySet()) {
-			if (metaBlocks.contains(entry.getValue())) {
-				this.metaBlocksForFreeList.add(entry.getKey());
+		// index of the page containing i at each level
+		int[] indexes = new int[depth + 1];
+		int index = i;
+		for (int level = 0; level <= depth; level++) {
+			index /= n;
+			indexes[level] = index;
+		}
+		if (indexes[depth] != 0) {
+			return; // beyond the root: not on disk
+		}
+		for (int level = depth; level >= 0; level--) {
+			loadPage(level, indexes[level]);
+		}
+	}
+	
+	private void loadPage(int level, int index) {
+		BitSet loaded = this.loadedPages.get(level);
+		if (loaded.get(index)) {
+			return;
+		}
+		loaded.set(index);
+		
+		int diskAddr = this.pageAddrs.get(level).get(index);
+		if (diskAddr == 0) {
+			return;
+		}
+		if (diskAddr >= maxBlocks) {
+			throw new IllegalStateException("Page " + index + " at level " + level + " is out of range: " + diskAddr);
+		}
+		
+		ByteBuffer bb = bufferPool.acquire();
+		try {
+			blockIO.readBlock(diskAddr, bb.array());
+			int n = entriesPerPage();
+			for (int j = 0; j < n; j++) {
+				int value = bb.getInt();
+				if (value != 0) {
+					if (level == 0) {
+						this.dictMap.set(index * n + j, value);
+						this.prevDictMap.set(index * n + j, value);
+						this.diskMap.set(value, index * n + j);
+						this.prevDiskMap.set(value, index * n + j);
+						for (Snapshot snapshot : this.snapshots) {
+							snapshot.dictMap.set(index * n + j, value);
+						}
+					}
+					else {
+						this.pageAddrs.get(level - 1).set(index * n + j, value);
+						this.prevPageAddrs.get(level - 1).set(index * n + j, value);
+					}
+				}
 			}
 		}
+		finally {
+			bufferPool.release(bb);
+		}
+	}
+	
+	/**
+	 * Read up to maxPages pages of the page table which are not loaded yet, top down. Once all are, the free blocks
+	 * are known and reused, and the blocks freed or allocated since the store was opened are checked against them.
+	 * Run it in steps between other operations, or at once with Integer.MAX_VALUE.
+	 * @param maxPages
+	 * @return whether the scrub is complete
+	 */
+	public synchronized boolean scrub(int maxPages) {
+		scrubPages(maxPages);
+		return scrubbed;
+	}
+	
+	/**
+	 * 
+	 * @param maxPages
+	 * @return number of pages read
+	 */
+	private int scrubPages(int maxPages) {
+		int pages = 0;
+		while (!scrubbed && pages < maxPages) {
+			if (scrubLevel < 0) {
+				scrubbed();
+				break;
+			}
+			int index = this.pageAddrs.get(scrubLevel).next(scrubIndex);
+			if (index < 0) {
+				scrubLevel--;
+				scrubIndex = 0;
+				continue;
+			}
+			scrubIndex = index + 1;
+			if (!this.loadedPages.get(scrubLevel).get(index)) {
+				loadPage(scrubLevel, index);
+				pages++;
+			}
+		}
+		return pages;
+	}
+	
+	/**
+	 * All pages are loaded: the free blocks are the disk blocks which are neither data blocks nor pages.
+	 */
+	private void scrubbed() {
+		BitSet used = new BitSet(maxBlocks);
+		used.set(0);
+		markUsed(used, this.dictMap);
+		for (PagedIntArray addrs : this.pageAddrs) {
+			markUsed(used, addrs);
+		}
+		verifyFreeBlocks(used);
 		
-		this.safeFreeBlocks = new HashSet<>(this.prevFreeBlocks);
+		// the blocks freed since the last commit are not safe to reuse yet
+		BitSet unsafe = (BitSet)this.freeBlocks.clone();
+		unsafe.andNot(this.safeFreeBlocks);
 		
+		this.freeBlocks = new BitSet(maxBlocks);
+		this.freeBlocks.set(0, maxBlocks);
+		this.freeBlocks.andNot(used);
+		this.safeFreeBlocks = (BitSet)this.freeBlocks.clone();
+		this.safeFreeBlocks.andNot(unsafe);
+		
+		this.scrubbed = true;
 		verifyInvariants();
 	}
 	
-	private void verifyInvariants() {
-
-		int diff = maxBlocks - this.dictMap.size() - this.freeBlocks.size() - 1;
-		if (diff != 0) {
-			throw new IllegalStateException("Diff: " + diff);
+	/**
+	 * Until the scrub is complete, the free blocks are only the ones freed since the store was opened, and the
+	 * blocks from openBlocks on are the ones allocated since. Check both against the blocks in use.
+	 * @param used
+	 */
+	private void verifyFreeBlocks(BitSet used) {
+		BitSet freedInUse = (BitSet)this.freeBlocks.clone();
+		freedInUse.and(used);
+		if (!freedInUse.isEmpty()) {
+			throw new IllegalStateException("Free block is in use: " + freedInUse.nextSetBit(0));
 		}
 		
-		for (Map.Entry<Integer, Integer> entry : this.dictMap.entrySet()) {
-			int addr = entry.getKey();
-			int diskAddr = entry.getValue();
-			if (diskAddr >= maxBlocks) {
-				throw new IllegalStateException();
+		BitSet leaked = new BitSet(maxBlocks);
+		leaked.set(Math.min(openBlocks, maxBlocks), maxBlocks);
+		leaked.andNot(used);
+		leaked.andNot(this.freeBlocks);
+		if (!leaked.isEmpty()) {
+			throw new IllegalStateException("Block is neither used nor free: " + leaked.nextSetBit(0));
+		}
+	}
+	
+	private static void markUsed(BitSet used, PagedIntArray diskAddrs) {
+		for (int i = diskAddrs.next(0); i >= 0; i = diskAddrs.next(i + 1)) {
+			int diskAddr = diskAddrs.get(i);
+			if (diskAddr < 0) {
+				throw new IllegalStateException("Disk address is out of range: " + diskAddr);
 			}
-			if (addr > addrSeq) {
-				throw new IllegalStateException();
+			if (used.get(diskAddr)) {
+				throw new IllegalStateException("Disk address is used twice: " + diskAddr);
 			}
+			used.set(diskAddr);
+		}
+	}
+	
+	private static List<BitSet> copy(List<BitSet> dirtyPages) {
+		List<BitSet> result = new ArrayList<>();
+		for (BitSet dirty : dirtyPages) {
+			result.add((BitSet)dirty.clone());
+		}
+		return result;
+	}
+	
+	private static List<PagedIntArray> snapshot(List<PagedIntArray> pageAddrs) {
+		List<PagedIntArray> result = new ArrayList<>();
+		for (PagedIntArray addrs : pageAddrs) {
+			result.add(addrs.snapshot());
 		}
-		for (Integer diskAddr : this.freeBlocks) {
+		return result;
+	}
+	
+	private int pageCount() {
+		int result = 0;
+		for (PagedIntArray addrs : this.pageAddrs) {
+			result += addrs.size();
+		}
+		return result;
+	}
+	
+	private void verifyInvariants() {
+
+		if (items != this.dictMap.size()) {
+			throw new IllegalStateException("Items: " + items + " vs. " + this.dictMap.size());
+		}
+		
+		for (int addr = dictMap.next(0); addr >= 0; addr = dictMap.next(addr + 1)) {
+			int diskAddr = dictMap.get(addr);
 			if (diskAddr >= maxBlocks) {
 				throw new IllegalStateException();
 			}
-		}
-		for (Integer addr : this.metaBlocksForDictMap) {
-			if (this.dictMap.get(addr) == null) {
+			if (addr > addrSeq) {
 				throw new IllegalStateException();
 			}
 		}
-		for (Integer addr : this.metaBlocksForFreeList) {
-			if (this.dictMap.get(addr) == null) {
-				throw new IllegalStateException();
-			}
+		if (this.freeBlocks.length() > maxBlocks) {
+			throw new IllegalStateException();
 		}
 	}
 	
 	
 	private void writeMetaData() {
 		
-		for (int b : metaBlocksForFreeList) {
-			safeRemoveBlock(b);
+		int n = entriesPerPage();
+		
+		// grow the radix tree until the root covers all logical addresses
+		long capacity = n;
+		for (int level = 0; level < depth; level++) {
+			capacity *= n;
+		}
+		while (capacity <= this.addrSeq) {
+			capacity *= n;
+			depth++;
+			this.pageAddrs.add(new PagedIntArray(n));
+			this.dirtyPages.add(new BitSet());
+			this.dirtyPages.get(depth).set(0);
+			if (this.loadedPages.size() <= depth) {
+				this.loadedPages.add(new BitSet());
+			}
+			this.loadedPages.get(depth).set(0);
+		}
+		if (this.compactTarget > 0) {
+			// the pages at the end of the file are rewritten near its start
+			for (int level = 0; level <= depth; level++) {
+				PagedIntArray addrs = this.pageAddrs.get(level);
+				for (int index = addrs.next(0); index >= 0; index = addrs.next(index + 1)) {
+					if (addrs.get(index) >= this.compactTarget) {
+						this.dirtyPages.get(level).set(index);
+					}
+				}
+			}
+			this.compactTarget = 0;
 		}
-		for (int b : metaBlocksForDictMap) {
-			safeRemoveBlock(b);
+		this.generation++;
+		
+		ByteBuffer bb = bufferPool.acquire();
+		byte[] buf = bb.array();
+		Arrays.fill(buf, (byte)0);
+		
+		for (int level = 0; level <= depth; level++) {
+			PagedIntArray addrs = this.pageAddrs.get(level);
+			PagedIntArray entries = level == 0 ? this.dictMap : this.pageAddrs.get(level - 1);
+			BitSet dirty = this.dirtyPages.get(level);
+			for (int index = dirty.nextSetBit(0); index >= 0; index = dirty.nextSetBit(index + 1)) {
+				
+				bb.clear();
+				boolean empty = true;
+				for (int j = 0; j < n; j++) {
+					int value = entries.get(index * n + j);
+					bb.putInt(value);
+					empty &= value == 0;
+				}
+				
+				int oldDiskAddr = addrs.remove(index);
+				if (oldDiskAddr != 0) {
+					setFree(oldDiskAddr, true); // may still be referenced by the last commit
+				}
+				if (!empty || level == depth) {
+					int diskAddr = newDiskBlock();
+					setFree(diskAddr, false);
+					this.safeFreeBlocks.clear(diskAddr);
+					blockIO.writeBlock(diskAddr, buf);
+					addrs.set(index, diskAddr);
+				}
+				
+				if (level < depth) {
+					this.dirtyPages.get(level + 1).set(index / n);
+				}
+			}
+			dirty.clear();
 		}
 		
-		int capPerBlock = blockIO.blocksize() / 4 - 2; // measured in int. Minus two for the overhead of storing the next pointer and count.
-		int nBlocks = (this.freeBlocks.size() + capPerBlock - 1 ) / capPerBlock;
-		List<Integer> newMetaBlocksForFreeList = newLogicalBlocks(nBlocks);
+		int rootAddr = this.pageAddrs.get(depth).get(0);
 		
-		nBlocks = (this.dictMap.size() * 2 + this.metaBlocksForFreeList.size() * 2 + this.metaBlocksForDictMap.size() * 2 + capPerBlock - 1 ) / (capPerBlock - 2);
-		List<Integer> newMetaBlocksForDictMap = newLogicalBlocks(nBlocks);
+		// the free blocks at the end are cut off: only the last commit may still refer to them, unless a snapshot is open
+		int end = this.freeBlocks.previousClearBit(this.maxBlocks - 1) + 1;
+		if (end < this.maxBlocks && this.snapshots.isEmpty()) {
+			this.freeBlocks.clear(end, this.maxBlocks);
+			this.safeFreeBlocks.clear(end, this.maxBlocks);
+			this.maxBlocks = end;
+		}
 		
-		int freeIndex = storeIntArray(blockIO, new LinkedList<>(this.freeBlocks), logicalToDiskAddrs(newMetaBlocksForFreeList));
-		int dictIndex = storeIntArray(blockIO, m2l(this.dictMap), logicalToDiskAddrs(newMetaBlocksForDictMap));
-
-		byte[] buf = new byte[blockIO.blocksize()];
-		ByteBuffer bb = ByteBuffer.wrap(buf);
+		bb.clear();
+		Arrays.fill(buf, (byte)0);
 		bb.putInt(this.maxBlocks);
 		bb.putInt(this.addrSeq);
-		bb.putInt(dictIndex);
-		bb.putInt(freeIndex);
-		
-		
+		bb.putInt(this.depth);
+		bb.putInt(rootAddr);
+		bb.putInt(this.generation);
+		bb.putInt(this.items);
 		
+		if (log != null) {
+			// the log is discarded after this checkpoint, so the superblock must not reach the disk before the blocks it refers to
+			blockIO.flush();
+		}
 		blockIO.writeBlock(0, buf);
-		this.prevDictMap = this.dictMap;
-		this.dictMap = new HashMap<>(this.prevDictMap);
-		this.prevFreeBlocks = this.freeBlocks;
-		this.freeBlocks = new HashSet<>(prevFreeBlocks);
-		this.prevMaxBlocks = this.maxBlocks;
-		this.safeFreeBlocks = new HashSet<>(this.freeBlocks);
-		this.metaBlocksForDictMap = new ArrayList<>(newMetaBlocksForDictMap);
-		this.metaBlocksForFreeList = new ArrayList<>(newMetaBlocksForFreeList);
+		bufferPool.release(bb);
 		
+		committed();
+	}
+	
+	/**
+	 * Make the current state the one rollback returns to.
+	 */
+	private void committed() {
+		this.prevDictMap = this.dictMap.snapshot();
+		this.prevDiskMap = this.diskMap.snapshot();
+		this.prevMaxBlocks = this.maxBlocks;
+		this.prevDepth = this.depth;
+		this.prevItems = this.items;
+		this.prevPageAddrs = snapshot(this.pageAddrs);
+		this.prevDirtyPages = copy(this.dirtyPages);
+		this.version++;
 		
+		// blocks freed since the last commit are now safe to reuse, unless an open snapshot may refer to them
+		int[] pinned = new int[1];
+		int pinnedSize = 1;
+		for (int k = 0; k < freeJournalSize; k++) {
+			int diskAddr = (int)(freeJournal[k] >>> 1);
+			boolean free = this.freeBlocks.get(diskAddr);
+			if (free && !this.safeFreeBlocks.get(diskAddr) && !this.snapshots.isEmpty()) {
+				// it was in the last commit, and so it may be in a snapshot
+				if (pinnedSize == pinned.length) {
+					pinned = Arrays.copyOf(pinned, pinnedSize * 2);
+				}
+				pinned[pinnedSize++] = diskAddr;
+			}
+			else {
+				this.safeFreeBlocks.set(diskAddr, free);
+			}
+		}
+		if (pinnedSize > 1) {
+			pinned[0] = this.version;
+			this.pinnedFrees.add(Arrays.copyOf(pinned, pinnedSize));
+		}
+		freeJournalSize = 0;
+		releaseImages();
+		this.freedBlocks.clear();
 	}
 	
-	private List<Integer> logicalToDiskAddrs(List<Integer> addrs) {
-		List<Integer> result = new ArrayList<>();
-		for (Integer addr : addrs) {
-			int diskAddr = this.dictMap.get(addr);
-			result.add(diskAddr);
+	/**
+	 * Record a change of the dictionary entry of logical address i.
+	 */
+	private void markDirty(int i) {
+		this.dirtyPages.get(0).set(i / entriesPerPage());
+		this.changed = true;
+	}
+	
+	private void setFree(int diskAddr, boolean free) {
+		if (this.freeBlocks.get(diskAddr) == free) {
+			return;
 		}
-		return result;
+		if (freeJournalSize == freeJournal.length) {
+			freeJournal = Arrays.copyOf(freeJournal, freeJournalSize * 2);
+		}
+		freeJournal[freeJournalSize++] = (long)diskAddr << 1 | (free ? 0 : 1);
+		this.freeBlocks.set(diskAddr, free);
 	}
 	
-	private static void checkCommit(BlockIO blockIO, int expectedMaxBlocks, Set<Integer> expectedFreeBlocks, Map<Integer, Integer> expectedDictMap) {
+	private static void checkCommit(BlockIO blockIO, int expectedMaxBlocks, BitSet expectedFreeBlocks, PagedIntArray expectedDictMap) {
 		
 		BlockStore newBlockStore = new BlockStore(blockIO);
+		Assert.assertTrue(newBlockStore.scrub(Integer.MAX_VALUE));
 		Assert.assertEquals(expectedMaxBlocks, newBlockStore.maxBlocks);
 		Assert.assertEquals(expectedFreeBlocks, newBlockStore.freeBlocks);
 		Assert.assertEquals(expectedDictMap, newBlockStore.dictMap);
 	}
 	
-	private static Map<Integer, Integer> l2m(List<Integer> l) {
-		Map<Integer, Integer> result = new HashMap<>();
-		for (int i = 0; i < l.size(); i += 2) {
-			result.put(l.get(i), l.get(i+1));
-		}
-		return result;
+	private int newLogicalBlock(int allocBlock) {
+		
+		load(this.addrSeq + 1);
+		setFree(allocBlock, false);
+		this.safeFreeBlocks.clear(allocBlock);
+		this.dictMap.set(++this.addrSeq, allocBlock);
+		this.diskMap.set(allocBlock, this.addrSeq);
+		this.items++;
+		markDirty(this.addrSeq);
+		
+		return this.addrSeq;
 	}
-	
-	private static List<Integer> m2l(Map<Integer, Integer> m) {
-		List<Integer> result = new LinkedList<>();
-		for (Map.Entry<Integer, Integer> e : m.entrySet()) {
-			result.add(e.getKey());
-			result.add(e.getValue());
-		}
-		return result;
+
+	private int newDiskBlock() {
+		return newDiskBlock(1);
 	}
 	
-	
-	private List<Integer> newLogicalBlocks(int count) {
-		List<Integer> result = new ArrayList<>();
-		while (count > 0) {
-			result.add(newLogicalBlock());
-			count--;
+	/**
+	 * 
+	 * @param hint
+	 * @return the safe free disk block nearest to hint, or a new block at the end of the file if there is none
+	 */
+	private int newDiskBlockNear(int hint) {
+		int after = this.safeFreeBlocks.nextSetBit(Math.max(hint, 1));
+		int before = hint > 1 ? this.safeFreeBlocks.previousSetBit(hint - 1) : -1;
+		if (before >= 1 && (after < 0 || hint - before < after - hint)) {
+			this.changed = true;
+			return before;
 		}
-		return result;
+		return newDiskBlock(hint);
 	}
 	
-	private int newLogicalBlock() {
-		
-		int allocBlock = newDiskBlock();
-
-		this.freeBlocks.remove(allocBlock);
-		this.safeFreeBlocks.remove(allocBlock);
-		this.dictMap.put(++this.addrSeq, allocBlock);
+	/**
+	 * First fit of n consecutive safe free disk blocks, searched from hint and then from the start of the file.
+	 * A free run at the end of the file is extended; otherwise the run is added at the end of the file.
+	 * @param n
+	 * @param hint
+	 * @return the first disk block of the run
+	 */
+	private int newDiskRun(int n, int hint) {
+		int start = -1;
+		for (int from = Math.max(hint, 1), to = this.maxBlocks; start < 0 && from < to; to = from, from = 1) {
+			for (int s = this.safeFreeBlocks.nextSetBit(from); s >= 0 && s < to; ) {
+				int e = this.safeFreeBlocks.nextClearBit(s);
+				if (e - s >= n || e >= this.maxBlocks) {
+					start = s;
+					break;
+				}
+				s = this.safeFreeBlocks.nextSetBit(e);
+			}
+		}
+		if (start < 0) {
+			start = this.maxBlocks;
+		}
+		this.maxBlocks = Math.max(this.maxBlocks, start + n);
+		this.fileBlocks = Math.max(this.fileBlocks, this.maxBlocks);
 		this.changed = true;
-		
-		return this.addrSeq;
+		return start;
 	}
-
-	private int newDiskBlock() {		
-		int allocBlock = this.safeFreeBlocks.isEmpty() ? this.maxBlocks++ : safeFreeBlocks.iterator().next();
+	
+	/**
+	 * 
+	 * @param from
+	 * @return the first safe free disk block from the given disk address, or a new block at the end of the file
+	 */
+	private int newDiskBlock(int from) {
+		int allocBlock = this.safeFreeBlocks.nextSetBit(Math.max(from, 1));
+		if (allocBlock < 0) {
+			allocBlock = this.maxBlocks++;
+			this.fileBlocks = Math.max(this.fileBlocks, this.maxBlocks);
+		}
 		this.changed = true;
 		return allocBlock;
 	}
 	
 	private int relocateLogicalBlock(int i) {
-		Integer currDiskAddr = this.dictMap.get(i);
-		if (currDiskAddr == null) {
+		int currDiskAddr = this.dictMap.get(i);
+		if (currDiskAddr == 0) {
 			throw new IllegalStateException();
 		}
 		
-		int newDiskAddr = newDiskBlock();
-		this.dictMap.put(i, newDiskAddr);
-		this.freeBlocks.remove(currDiskAddr);
-		this.freeBlocks.remove(newDiskAddr);
-		this.safeFreeBlocks.remove(newDiskAddr);
-		this.changed = true;
+		int newDiskAddr = newDiskBlockNear(currDiskAddr); // keep the block where it was read from
+		this.dictMap.set(i, newDiskAddr);
+		this.diskMap.remove(currDiskAddr);
+		this.diskMap.set(newDiskAddr, i);
+		setFree(currDiskAddr, true); // still referenced by the last commit, so not safe to reuse yet
+		setFree(newDiskAddr, false);
+		this.safeFreeBlocks.clear(newDiskAddr);
+		markDirty(i);
 
 		return newDiskAddr;
 	}
 	
+	/**
+	 * 
+	 * @param i
+	 * @return the disk block of logical block i, or 0 if there is none
+	 */
+	private int lookup(int i) {
+		load(i);
+		return this.dictMap.get(i);
+	}
+	
+	/**
+	 * Copy logical block i to disk block newDiskAddr, which must be free.
+	 */
+	private void moveBlock(int i, int newDiskAddr) {
+		int currDiskAddr = this.dictMap.get(i);
+		
+		ByteBuffer bb = bufferPool.acquire();
+		try {
+			blockIO.readBlock(currDiskAddr, bb.array());
+			blockIO.writeBlock(newDiskAddr, bb.array());
+			if (log != null) {
+				logImage(i, bb.array());
+			}
+		}
+		finally {
+			bufferPool.release(bb);
+		}
+		
+		this.dictMap.set(i, newDiskAddr);
+		this.diskMap.remove(currDiskAddr);
+		this.diskMap.set(newDiskAddr, i);
+		setFree(currDiskAddr, true);
+		if (currDiskAddr >= this.prevMaxBlocks) {
+			this.safeFreeBlocks.set(currDiskAddr);
+		}
+		setFree(newDiskAddr, false);
+		this.safeFreeBlocks.clear(newDiskAddr);
+		markDirty(i);
+	}
+	
+	/**
+	 * Move up to maxMoves blocks from the end of the file into free blocks near its start, keeping their order. The pages of the page
+	 * table at the end of the file are rewritten near its start by the next checkpoint, which also truncates the free
+	 * blocks at the end of the file. Blocks freed since the last commit cannot be reused yet, so compaction makes
+	 * progress across commits: call it between transactions until it returns 0. A step reads and writes at most
+	 * maxMoves blocks; until the scrub is complete, it reads up to maxMoves pages of the page table instead.
+	 * 
+	 * @param maxMoves
+	 * @return number of blocks moved or pages read, 0 once no block can move closer to the start of the file
+	 */
+	public synchronized int compact(int maxMoves) {
+		
+		if (!scrubbed) {
+			// compaction needs all the free blocks
+			int pages = scrubPages(maxMoves);
+			if (!scrubbed) {
+				return pages;
+			}
+		}
+		
+		// once compacted, the used blocks are the blocks before this one
+		int target = 1 + this.items + pageCount();
+		
+		// blocks are moved in ascending order into ascending holes, which keeps the order laid out by defragmentation
+		int moves = 0;
+		for (int d = this.freeBlocks.nextClearBit(target); d < this.maxBlocks && moves < maxMoves; d = this.freeBlocks.nextClearBit(d + 1)) {
+			int i = this.diskMap.get(d);
+			if (i == 0) {
+				// a page of the page table
+				this.compactTarget = target;
+				this.changed = true;
+				continue;
+			}
+			int hole = this.safeFreeBlocks.nextSetBit(1);
+			if (hole < 0 || hole >= target) {
+				break;
+			}
+			
+			moveBlock(i, hole);
+			moves++;
+		}
+		return moves;
+	}
+	
+	/**
+	 * Move logical block i to the first free disk block after the disk block of logical block after, unless no
+	 * free block lies between them. Used to lay out blocks in the order they are read.
+	 * 
+	 * @param i
+	 * @param after a logical block, or 0 to move block i toward the start of the file
+	 * @return whether block i was moved
+	 */
+	public synchronized boolean relocate(int i, int after) {
+		int diskAddr = lookup(i);
+		if (diskAddr == 0) {
+			throw new NoSuchElementException("Addr " + i + " does not exists.");
+		}
+		
+		int afterDiskAddr = after != 0 ? lookup(after) : 0;
+		int hole = this.safeFreeBlocks.nextSetBit(afterDiskAddr + 1);
+		if (diskAddr > afterDiskAddr && (hole < 0 || hole > diskAddr)) {
+			return false;
+		}
+		
+		moveBlock(i, newDiskBlock(afterDiskAddr + 1));
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @param i
+	 * @return the disk block where logical block i is stored, or 0 if there is none
+	 */
+	synchronized int diskAddr(int i) {
+		return lookup(i);
+	}
+	
 	public int blocksize() {
 		return blockIO.blocksize();
 	}
 	
-	public boolean hasBlock(int i) {
-		return this.dictMap.containsKey(i);
+	public synchronized boolean hasBlock(int i) {
+		return lookup(i) != 0;
+	}
+	
+	/**
+	 * Pool of buffers of the block size, for callers which read or write blocks in a loop.
+	 * @return
+	 */
+	public BufferPool bufferPool() {
+		return bufferPool;
 	}
 	
 	public byte[] readBlock(int i) {
@@ -279,21 +866,34 @@ public class BlockStore {
 		return buf;
 	}
 	
-	public void readBlock(int i, byte[] bytes) {
+	public synchronized void readBlock(int i, byte[] bytes) {
 		
 		
-		Integer diskAddr = this.dictMap.get(i);
-		if (diskAddr == null || diskAddr == 0) {
+		int diskAddr = lookup(i);
+		if (diskAddr == 0) {
 			throw new NoSuchElementException("Addr " + i + " does not exists.");
 		}
 		blockIO.readBlock(diskAddr, bytes);
 	}
 	
-	public void writeBlock(int i, byte[] bytes) {
+	/**
+	 * Hint that logical block i is going to be read soon. Only has an effect if the BlockIO is an {@link AsyncBlockIO}.
+	 * @param i
+	 */
+	public synchronized void prefetch(int i) {
+		if (blockIO instanceof AsyncBlockIO) {
+			int diskAddr = lookup(i);
+			if (diskAddr != 0) {
+				((AsyncBlockIO)blockIO).prefetch(diskAddr);
+			}
+		}
+	}
+	
+	public synchronized void writeBlock(int i, byte[] bytes) {
 		
 		
-		Integer diskAddr = this.dictMap.get(i);
-		if (diskAddr == null || diskAddr == 0) {
+		int diskAddr = lookup(i);
+		if (diskAddr == 0) {
 			throw new NoSuchElementException();
 		}
 		
@@ -303,21 +903,73 @@ public class BlockStore {
 		}
 		
 		blockIO.writeBlock(diskAddr, bytes);
+		if (log != null) {
+			logImage(i, bytes);
+		}
 	}
 	
 	public int placeBlock(byte[] bytes) {
+		return placeBlock(bytes, 0);
+	}
+	
+	/**
+	 * Store a new block in the free disk block nearest to the block of near, e.g. the parent or the sibling of a node.
+	 * @param bytes
+	 * @param near a logical block, or 0 to store the block near the start of the file
+	 * @return the logical address of the new block
+	 */
+	public synchronized int placeBlock(byte[] bytes, int near) {
 
-		int addr = newLogicalBlock();
+		int addr = newLogicalBlock(newDiskBlockNear(lookup(near)));
 		int diskAddr = this.dictMap.get(addr);
 		blockIO.writeBlock(diskAddr, bytes);
+		if (log != null) {
+			logImage(addr, bytes);
+		}
 		return addr;
 	}
 	
-	public void freeBlock(int i) {
+	/**
+	 * Allocate n new blocks with consecutive logical addresses, stored in consecutive disk blocks from the first
+	 * free run after the block of near, so that they are read with sequential I/O. A single block goes to the free
+	 * block nearest to the block of near, like {@link #placeBlock(byte[], int)}. Their content is undefined until
+	 * they are written with {@link #writeBlock(int, byte[])}, which writes them in place until the next commit.
+	 * @param n
+	 * @param near a logical block, or 0 to search from the start of the file
+	 * @return the logical address of the first block
+	 */
+	public synchronized int allocateBlocks(int n, int near) {
+		if (n <= 0) {
+			throw new IllegalArgumentException();
+		}
+		
+		int hint = lookup(near);
+		int diskAddr = n == 1 ? newDiskBlockNear(hint) : newDiskRun(n, hint);
+		int first = this.addrSeq + 1;
+		for (int k = 0; k < n; k++) {
+			int addr = newLogicalBlock(diskAddr + k);
+			if (log != null) {
+				Arrays.fill(loggedImage(addr), (byte)0); // undefined until it is written
+			}
+		}
+		return first;
+	}
+	
+	public synchronized void freeBlock(int i) {
+		
+		if (log != null) {
+			ByteBuffer image = this.writtenImages.remove(i);
+			if (image != null) {
+				bufferPool.release(image);
+			}
+			if (this.prevDictMap.contains(i)) {
+				this.freedBlocks.set(i);
+			}
+		}
 		
 		int diskAddr = safeRemoveBlock(i);
 		if (diskAddr >= this.prevMaxBlocks) {
-			this.safeFreeBlocks.add(diskAddr);
+			this.safeFreeBlocks.set(diskAddr);
 		}
 		this.changed = true;
 	}
@@ -328,13 +980,16 @@ public class BlockStore {
 	 * @return
 	 */
 	private int safeRemoveBlock(int i) {
-		Integer diskAddr = this.dictMap.get(i);
-		if (diskAddr == null || diskAddr == 0) {
+		int diskAddr = lookup(i);
+		if (diskAddr == 0) {
 			throw new NoSuchElementException();
 		}
 
 		this.dictMap.remove(i);
-		this.freeBlocks.add(diskAddr);
+		this.diskMap.remove(diskAddr);
+		this.items--;
+		setFree(diskAddr, true);
+		markDirty(i);
 		return diskAddr;
 	}
 	
@@ -343,82 +998,211 @@ public class BlockStore {
 	 * Commit change
 	 * 
 	 */
-	public void commit() {
+	public synchronized void commit() {
 		if (changed) {
-			writeMetaData();
-			blockIO.flush();			
+			if (log == null) {
+				checkpoint();
+				return;
+			}
+			
+			appendLog();
+			committed();
 			changed = false;
+			if (log.position() >= checkpointBlocks) {
+				checkpoint();
+			}
 		}
 	}
 	
-	public void rollback() {
-		if (changed) {
-			blockIO.flush();
-			this.dictMap = new HashMap<>(this.prevDictMap);
-			this.freeBlocks = new HashSet<>(prevFreeBlocks);
-			this.maxBlocks = this.prevMaxBlocks;
-			this.safeFreeBlocks = new HashSet<>(this.prevFreeBlocks);
-			
-			changed = false;
+	/**
+	 * Commit by writing the page table and the superblock, after which the write-ahead log is no longer needed.
+	 */
+	public synchronized void checkpoint() {
+		writeMetaData();
+		blockIO.flush();
+		if (fileBlocks > maxBlocks) {
+			// only once the superblock which no longer refers to them is on disk
+			blockIO.truncate(maxBlocks);
+			fileBlocks = maxBlocks;
+		}
+		if (log != null) {
+			log.reset();
 		}
+		changed = false;
 	}
 	
-	private static List<Integer> loadIntArray(BlockIO blockIO, int addr, Collection<Integer> metaBlocks) {
-		List<Integer> result = new ArrayList<>();
-		byte[] buf = new byte[blockIO.blocksize()];
+	/**
+	 * Append the blocks written and freed since the last commit to the log as one record, forcing only the log.
+	 */
+	private void appendLog() {
+		int[] written = new int[this.writtenImages.size()];
+		byte[][] images = new byte[written.length][];
+		int k = 0;
+		for (Map.Entry<Integer, ByteBuffer> entry : this.writtenImages.entrySet()) {
+			written[k] = entry.getKey();
+			images[k++] = entry.getValue().array();
+		}
 		
-		while (addr > 0) {
-			metaBlocks.add(addr);
-			Arrays.fill(buf, (byte)0);
-			blockIO.readBlock(addr, buf);
-			ByteBuffer bb = ByteBuffer.wrap(buf);
-
-			int n = bb.getInt();
-			addr = bb.getInt(); // nextDiskAddr
-			
-			for (int i = 0; i < n; i++) {
-				result.add(bb.getInt());
-			}
-			
+		int[] freed = new int[this.freedBlocks.cardinality()];
+		k = 0;
+		for (int i = this.freedBlocks.nextSetBit(0); i >= 0; i = this.freedBlocks.nextSetBit(i + 1)) {
+			freed[k++] = i;
 		}
 		
-		return result;
+		log.append(generation, addrSeq, written, images, freed);
 	}
 	
-	private static int storeIntArray(BlockIO blockIO, List<Integer> array, List<Integer> blocks) {
-		
-		int arrayIndex = 0;
-		
-		for (int i = 0; i < blocks.size(); i++) {
-			int b = blocks.get(i);
-			byte[] buf = new byte[blockIO.blocksize()];
-			ByteBuffer bb = ByteBuffer.wrap(buf);
-			bb.putInt(0); // temp size; will be changed.
-			bb.putInt( i < blocks.size() - 1 ? blocks.get(i+1) : 0 );
+	/**
+	 * 
+	 * @param i
+	 * @return the buffer which keeps the image of logical block i until the next commit
+	 */
+	private byte[] loggedImage(int i) {
+		ByteBuffer image = this.writtenImages.get(i);
+		if (image == null) {
+			image = bufferPool.acquire();
+			this.writtenImages.put(i, image);
+		}
+		return image.array();
+	}
+	
+	/**
+	 * Keep a copy of the bytes written to logical block i for the log record of the next commit, so that commit
+	 * does not read them back.
+	 */
+	private void logImage(int i, byte[] bytes) {
+		byte[] image = loggedImage(i);
+		int n = Math.min(bytes.length, image.length);
+		System.arraycopy(bytes, 0, image, 0, n);
+		Arrays.fill(image, n, image.length, (byte)0);
+	}
+	
+	private void releaseImages() {
+		for (ByteBuffer image : this.writtenImages.values()) {
+			bufferPool.release(image);
+		}
+		this.writtenImages.clear();
+	}
+	
+	public synchronized void rollback() {
+		if (changed) {
+			blockIO.flush();
+			this.dictMap = this.prevDictMap.snapshot();
+			this.diskMap = this.prevDiskMap.snapshot();
+			this.maxBlocks = this.prevMaxBlocks;
+			this.depth = this.prevDepth;
+			this.items = this.prevItems;
+			this.pageAddrs = snapshot(this.prevPageAddrs);
+			this.dirtyPages = copy(this.prevDirtyPages);
+			releaseImages();
+			this.freedBlocks.clear();
 			
-			int count = 0;
-			while (bb.remaining() >= 4 && arrayIndex < array.size()) {
-				bb.putInt(array.get(arrayIndex++));
-				count++;
+			// undo the changes of the free list
+			for (int k = freeJournalSize - 1; k >= 0; k--) {
+				this.freeBlocks.set((int)(freeJournal[k] >>> 1), (freeJournal[k] & 1) == 1);
+			}
+			for (int k = 0; k < freeJournalSize; k++) {
+				int diskAddr = (int)(freeJournal[k] >>> 1);
+				this.safeFreeBlocks.set(diskAddr, this.freeBlocks.get(diskAddr));
 			}
+			freeJournalSize = 0;
+			this.freeBlocks.clear(this.maxBlocks, Math.max(this.maxBlocks, this.freeBlocks.length()));
+			this.safeFreeBlocks.clear(this.maxBlocks, Math.max(this.maxBlocks, this.safeFreeBlocks.length()));
 			
-			bb.putInt(0, count);
-			blockIO.writeBlock(b, buf);
-		}
-
-		if (arrayIndex < array.size()) {
-			throw new IllegalStateException("Some values are not stored from index: " + arrayIndex);
+			changed = false;
 		}
-		
-		return blocks.size() == 0 ? 0 : blocks.get(0);
 	}
 	
 	/**
 	 * return number of blocks stored on this blockstore (this already remove the overhead)
 	 * @return
 	 */
-	public int itemsStored() {
-		return this.dictMap.size() - this.metaBlocksForDictMap.size() - this.metaBlocksForFreeList.size();
+	public synchronized int itemsStored() {
+		return this.items;
+	}
+	
+	/**
+	 * Pin the last committed version, so that any number of threads can read it while this store is changed and
+	 * committed. Uncommitted changes are not visible to it, and its blocks are not reused until it is released.
+	 * The BlockIO must support reads concurrent with writes of other blocks, as the BlockIOs of this package do.
+	 * @return
+	 */
+	public synchronized Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot(this.prevDictMap.snapshot(), this.version);
+		this.snapshots.add(snapshot);
+		return snapshot;
+	}
+	
+	/**
+	 * Make the blocks pinned only by the released snapshot safe to reuse.
+	 */
+	private synchronized void release(Snapshot snapshot) {
+		if (!this.snapshots.remove(snapshot)) {
+			return;
+		}
+		int oldest = this.snapshots.isEmpty() ? Integer.MAX_VALUE : this.snapshots.get(0).version;
+		while (!this.pinnedFrees.isEmpty() && this.pinnedFrees.peek()[0] <= oldest) {
+			int[] pinned = this.pinnedFrees.poll();
+			for (int k = 1; k < pinned.length; k++) {
+				this.safeFreeBlocks.set(pinned[k]); // still free: it could not be reused meanwhile
+			}
+		}
+	}
+	
+	/**
+	 * Read-only view of a committed version of the block store, see {@link #snapshot()}. Its dictionary is a copy
+	 * on write of the committed one, so reading it does not lock the store once the page table is fully loaded.
+	 */
+	public class Snapshot {
+		
+		private final PagedIntArray dictMap; // logical address -> disk address in this version
+		private final int version;
+		private volatile boolean released = false;
+		
+		private Snapshot(PagedIntArray dictMap, int version) {
+			this.dictMap = dictMap;
+			this.version = version;
+		}
+		
+		private int lookup(int i) {
+			if (released) {
+				throw new IllegalStateException("Snapshot is released.");
+			}
+			if (!scrubbed) {
+				// the page of i may not be loaded yet, which loads it into this snapshot as well
+				synchronized (BlockStore.this) {
+					load(i);
+					return this.dictMap.get(i);
+				}
+			}
+			return this.dictMap.get(i);
+		}
+		
+		public int blocksize() {
+			return blockIO.blocksize();
+		}
+		
+		public boolean hasBlock(int i) {
+			return lookup(i) != 0;
+		}
+		
+		public void readBlock(int i, byte[] bytes) {
+			int diskAddr = lookup(i);
+			if (diskAddr == 0) {
+				throw new NoSuchElementException("Addr " + i + " does not exists.");
+			}
+			blockIO.readBlock(diskAddr, bytes);
+		}
+		
+		/**
+		 * Unpin this version. The snapshot must not be read afterward.
+		 */
+		public void release() {
+			if (!released) {
+				released = true;
+				BlockStore.this.release(this);
+			}
+		}
 	}
 	
 
@@ -444,7 +1228,7 @@ public class BlockStore {
 				int addr = map.keySet().iterator().next();
 				blockStore.freeBlock(addr);
 				map.remove(addr);
-//				System.out.println("Freeing " + addr + ". Free: " + blockStore.freeBlocks.size());
+//				System.out.println("Freeing " + addr + ". Free: " + blockStore.freeBlocks.cardinality());
 			}
 			else {
 				Arrays.fill(buf, (byte)0);
@@ -452,11 +1236,10 @@ public class BlockStore {
 				bb.putInt(++seq);
 				int addr = blockStore.placeBlock(buf);
 				map.put(addr, seq);
-				int diskAddr = blockStore.dictMap.get(addr);
 				if (map.size() != blockStore.itemsStored()) {
 					throw new IllegalStateException("Mismatched: " + map.size() + " vs. " + blockStore.itemsStored());
 				}
-//				System.out.println("Puting " + addr + ". Value: " + seq + ". Size: " + map.size() + ". Free: " + blockStore.freeBlocks.size() + ". Map: " + blockStore.dictMap.size() + ". Max: " + blockStore.maxBlocks + ". Overhead free: " + blockStore.metaBlocksForFreeList.size() + ". Overhead dict: " + blockStore.metaBlocksForDictMap.size());
+//				System.out.println("Puting " + addr + ". Value: " + seq + ". Size: " + map.size() + ". Free: " + blockStore.freeBlocks.cardinality() + ". Map: " + blockStore.dictMap.size() + ". Max: " + blockStore.maxBlocks + ". Pages: " + blockStore.pageCount());
 				
 			}
 			
@@ -471,14 +1254,14 @@ public class BlockStore {
 			
 			if (randomFlush.nextInt(10) == 1) {
 				blockStore.commit();
-//				System.out.println("Commit. Free: " + blockStore.freeBlocks.size() + ". Map: " + blockStore.dictMap.size());
+//				System.out.println("Commit. Free: " + blockStore.freeBlocks.cardinality() + ". Map: " + blockStore.dictMap.size());
 				BlockStore.checkCommit(blockIO, blockStore.maxBlocks, blockStore.freeBlocks, blockStore.dictMap);
 				
 //				blockStore = new BlockStore(blockIO);
 			}
 			
 		}
-		System.out.println("Size: " + map.size() + ". Free: " + blockStore.freeBlocks.size() + ". Map: " + blockStore.dictMap.size() + ". Max: " + blockStore.maxBlocks + ". Overhead free: " + blockStore.metaBlocksForFreeList.size() + ". Overhead dict: " + blockStore.metaBlocksForDictMap.size());
+		System.out.println("Size: " + map.size() + ". Free: " + blockStore.freeBlocks.cardinality() + ". Map: " + blockStore.dictMap.size() + ". Max: " + blockStore.maxBlocks + ". Pages: " + blockStore.pageCount() + ". Depth: " + blockStore.depth);
 
 	}
 	
@@ -487,22 +1270,338 @@ public class BlockStore {
 	public static class TestCase {
 		
 		@Test
-		public void storeArray() {
+		public void persistPageTable() {
+			
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(10 * 4); // 10 entries per page
+			BlockStore blockStore = new BlockStore(blockIO);
+			
+			byte[] buf = new byte[blockIO.blocksize()];
+			for (int i = 0; i < 500; i++) {
+				ByteBuffer.wrap(buf).putInt(i);
+				blockStore.placeBlock(buf);
+			}
+			for (int i = 1; i <= 500; i += 3) {
+				blockStore.freeBlock(i);
+			}
+			blockStore.commit();
+			Assert.assertEquals(2, blockStore.depth);
+			checkCommit(blockIO, blockStore.maxBlocks, blockStore.freeBlocks, blockStore.dictMap);
+			
+			// rewriting one block only rewrites the pages on its path
+			int maxBlocks = blockStore.maxBlocks;
+			blockStore.writeBlock(2, buf);
+			blockStore.commit();
+			Assert.assertTrue(blockStore.maxBlocks - maxBlocks <= 1 + 3);
+			checkCommit(blockIO, blockStore.maxBlocks, blockStore.freeBlocks, blockStore.dictMap);
+			
+			blockStore.readBlock(2, buf);
+			Assert.assertEquals(499, ByteBuffer.wrap(buf).getInt());
+		}
+		
+		@Test
+		public void compact() {
+			
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(10 * 4);
+			BlockStore blockStore = new BlockStore(blockIO);
+			
+			byte[] buf = new byte[blockIO.blocksize()];
+			for (int i = 1; i <= 500; i++) {
+				ByteBuffer.wrap(buf).putInt(i);
+				blockStore.placeBlock(buf);
+			}
+			blockStore.commit();
+			for (int i = 1; i <= 400; i++) {
+				if (i % 10 != 0) {
+					blockStore.freeBlock(i);
+				}
+			}
+			blockStore.commit();
+			int maxBlocks = blockStore.maxBlocks;
+			
+			int moves = 20;
+			for (int round = 0; moves > 0; round++) {
+				if (moves == 20) {
+					// live traffic between the steps moves blocks at the end of the file
+					int i = 401 + round % 100;
+					blockStore.readBlock(i, buf);
+					blockStore.writeBlock(i, buf);
+					blockStore.commit();
+				}
+				moves = blockStore.compact(20);
+				Assert.assertTrue(moves <= 20);
+				blockStore.commit();
+			}
+			blockStore.commit();
+			
+			// the disk map is the inverse of the dictionary
+			Assert.assertEquals(blockStore.dictMap.size(), blockStore.diskMap.size());
+			for (int i = blockStore.dictMap.next(0); i >= 0; i = blockStore.dictMap.next(i + 1)) {
+				Assert.assertEquals(i, blockStore.diskMap.get(blockStore.dictMap.get(i)));
+			}
+			
+			// the file is truncated to the used blocks
+			Assert.assertTrue(blockStore.maxBlocks < maxBlocks / 3);
+			Assert.assertEquals(blockStore.maxBlocks, 1 + blockStore.itemsStored() + blockStore.pageCount());
+			checkCommit(blockIO, blockStore.maxBlocks, blockStore.freeBlocks, blockStore.dictMap);
+			for (int i = 1; i <= 500; i++) {
+				if (i > 400 || i % 10 == 0) {
+					blockStore.readBlock(i, buf);
+					Assert.assertEquals(i, ByteBuffer.wrap(buf).getInt());
+				}
+			}
+			
+			// until the scrub is complete, a step reads pages of the page table
+			blockStore = new BlockStore(blockIO);
+			Assert.assertEquals(2, blockStore.compact(2));
+			Assert.assertFalse(blockStore.scrubbed);
+			while (blockStore.compact(20) > 0) {
+				blockStore.commit();
+			}
+			Assert.assertTrue(blockStore.scrubbed);
+		}
+		
+		@Test
+		public void placement() {
+			
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(10 * 4);
+			BlockStore blockStore = new BlockStore(blockIO);
+			
+			byte[] buf = new byte[blockIO.blocksize()];
+			for (int i = 1; i <= 100; i++) {
+				blockStore.placeBlock(buf);
+			}
+			for (int i = 10; i < 30; i++) {
+				blockStore.freeBlock(i); // taken by the pages of the page table
+			}
+			for (int i = 60; i < 70; i++) {
+				blockStore.freeBlock(i);
+			}
+			blockStore.commit();
+			
+			// a new block goes to the free block nearest to its hint
+			int addr = blockStore.placeBlock(buf, 58);
+			Assert.assertTrue(Math.abs(blockStore.diskAddr(addr) - blockStore.diskAddr(58)) <= 2);
+			
+			// a run goes to the first free run which is long enough, after its hint
+			int first = blockStore.allocateBlocks(5, 40);
+			for (int k = 0; k < 5; k++) {
+				Assert.assertEquals(blockStore.diskAddr(first) + k, blockStore.diskAddr(first + k));
+				ByteBuffer.wrap(buf).putInt(k);
+				blockStore.writeBlock(first + k, buf);
+			}
+			Assert.assertTrue(blockStore.diskAddr(first) > blockStore.diskAddr(59) && blockStore.diskAddr(first) < blockStore.diskAddr(70));
+			
+			// or at the end of the file if there is none
+			int maxBlocks = blockStore.maxBlocks;
+			first = blockStore.allocateBlocks(11, 0);
+			Assert.assertEquals(maxBlocks, blockStore.diskAddr(first));
+			
+			blockStore.commit();
+			checkCommit(blockIO, blockStore.maxBlocks, blockStore.freeBlocks, blockStore.dictMap);
+			blockStore.readBlock(first - 1, buf);
+			Assert.assertEquals(4, ByteBuffer.wrap(buf).getInt());
+		}
+		
+		@Test
+		public void lazyOpen() {
 			
-			InMemoryBlockIO blockIO = new InMemoryBlockIO(4 * 4); // 4 int
-			List<Integer> array = Arrays.asList(101, 102, 103, 104, 105, 106, 107);
+			final int[] reads = new int[1];
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(10 * 4) {
+				@Override
+				public void readBlock(int i, byte[] bytes) {
+					reads[0]++;
+					super.readBlock(i, bytes);
+				}
+			};
+			BlockStore blockStore = new BlockStore(blockIO);
+			byte[] buf = new byte[blockIO.blocksize()];
+			for (int i = 1; i <= 500; i++) {
+				ByteBuffer.wrap(buf).putInt(i);
+				blockStore.placeBlock(buf);
+			}
+			for (int i = 1; i <= 500; i += 3) {
+				blockStore.freeBlock(i);
+			}
+			blockStore.commit();
+			Assert.assertEquals(2, blockStore.depth);
 			
-			int i = storeIntArray(blockIO, array, Arrays.asList(1, 2, 3, 4));
-			System.out.println(i);
+			// opening reads the superblock; a block is read with the pages on its path
+			reads[0] = 0;
+			blockStore = new BlockStore(blockIO);
+			Assert.assertEquals(1, reads[0]);
+			Assert.assertEquals(333, blockStore.itemsStored());
+			blockStore.readBlock(251, buf);
+			Assert.assertEquals(251, ByteBuffer.wrap(buf).getInt());
+			Assert.assertEquals(1 + 3 + 1, reads[0]);
 			
-			List<Integer> array2 = loadIntArray(blockIO, i, new HashSet<Integer>());
-			Collections.sort(array2);
+			// until the scrub is complete, new blocks are added at the end of the file
+			int maxBlocks = blockStore.maxBlocks;
+			int addr = blockStore.placeBlock(buf);
+			Assert.assertEquals(maxBlocks, blockStore.diskAddr(addr));
+			blockStore.freeBlock(2);
+			blockStore.commit();
 			
-			Assert.assertEquals(array, array2);
+			Assert.assertFalse(blockStore.scrub(3));
+			Assert.assertTrue(blockStore.scrub(Integer.MAX_VALUE));
+			checkCommit(blockIO, blockStore.maxBlocks, blockStore.freeBlocks, blockStore.dictMap);
+			addr = blockStore.placeBlock(buf);
+			Assert.assertTrue(blockStore.diskAddr(addr) < maxBlocks);
+		}
+		
+		@Test
+		public void scrubCheck() {
 			
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(10 * 4);
+			BlockStore blockStore = new BlockStore(blockIO);
+			byte[] buf = new byte[blockIO.blocksize()];
+			for (int i = 1; i <= 100; i++) {
+				blockStore.placeBlock(buf);
+			}
+			blockStore.commit();
+			
+			// a block freed while it is in use
+			blockStore = new BlockStore(blockIO);
+			blockStore.setFree(blockStore.diskAddr(50), true);
+			try {
+				blockStore.scrub(Integer.MAX_VALUE);
+				Assert.fail();
+			}
+			catch (IllegalStateException e) {
+			}
+			
+			// a block allocated and lost
+			blockStore = new BlockStore(blockIO);
+			blockStore.newDiskBlock();
+			try {
+				blockStore.scrub(Integer.MAX_VALUE);
+				Assert.fail();
+			}
+			catch (IllegalStateException e) {
+			}
+			
+			blockStore = new BlockStore(blockIO);
+			blockStore.writeBlock(20, buf);
+			blockStore.freeBlock(30);
+			blockStore.placeBlock(buf);
+			Assert.assertTrue(blockStore.scrub(Integer.MAX_VALUE));
 		}
 		
+		@Test
+		public void snapshot() {
+			
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(10 * 4);
+			BlockStore blockStore = new BlockStore(blockIO);
+			byte[] buf = new byte[blockIO.blocksize()];
+			ByteBuffer bb = ByteBuffer.wrap(buf);
+			for (int i = 1; i <= 100; i++) {
+				bb.putInt(0, i);
+				blockStore.placeBlock(buf);
+			}
+			blockStore.commit();
+			
+			// taken before the page table is loaded, which then loads into the snapshot too
+			blockStore = new BlockStore(blockIO);
+			BlockStore.Snapshot snapshot = blockStore.snapshot();
+			bb.putInt(0, -1);
+			blockStore.writeBlock(1, buf);
+			snapshot.readBlock(1, buf);
+			Assert.assertEquals(1, bb.getInt(0));
+			Assert.assertTrue(blockStore.scrub(Integer.MAX_VALUE));
+			
+			// the blocks of the snapshot are not reused by later commits, nor by rolled back changes
+			for (int round = 0; round < 10; round++) {
+				for (int i = 1; i <= 100; i++) {
+					bb.putInt(0, -i);
+					blockStore.writeBlock(i, buf);
+				}
+				if (round % 3 == 2) {
+					blockStore.rollback();
+				}
+				else {
+					blockStore.commit();
+				}
+			}
+			for (int i = 1; i <= 100; i += 2) {
+				blockStore.freeBlock(i);
+			}
+			blockStore.commit();
+			for (int i = 0; i < 100; i++) {
+				blockStore.placeBlock(buf);
+			}
+			blockStore.commit();
+			
+			for (int i = 1; i <= 100; i++) {
+				snapshot.readBlock(i, buf);
+				Assert.assertEquals(i, bb.getInt(0));
+			}
+			Assert.assertFalse(snapshot.hasBlock(101));
+			
+			// once it is released, they are
+			int maxBlocks = blockStore.maxBlocks;
+			snapshot.release();
+			for (int i = 2; i <= 100; i += 2) {
+				blockStore.writeBlock(i, buf);
+			}
+			blockStore.commit();
+			Assert.assertTrue(blockStore.maxBlocks < maxBlocks);
+			checkCommit(blockIO, blockStore.maxBlocks, blockStore.freeBlocks, blockStore.dictMap);
+			
+			try {
+				snapshot.readBlock(2, buf);
+				Assert.fail();
+			}
+			catch (IllegalStateException e) {
+			}
+		}
 		
+		@Test
+		public void writeAheadLog() {
+			
+			final int[] reads = new int[1];
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(10 * 4) {
+				@Override
+				public void readBlock(int i, byte[] bytes) {
+					reads[0]++;
+					super.readBlock(i, bytes);
+				}
+			};
+			InMemoryBlockIO logIO = new InMemoryBlockIO(10 * 4);
+			BlockStore blockStore = new BlockStore(blockIO, logIO, 100);
+			
+			byte[] buf = new byte[blockIO.blocksize()];
+			reads[0] = 0;
+			for (int i = 1; i <= 50; i++) {
+				ByteBuffer.wrap(buf).putInt(i);
+				blockStore.placeBlock(buf);
+				blockStore.commit();
+			}
+			Assert.assertEquals(0, reads[0]); // the logged images are kept when the blocks are written
+			blockStore.freeBlock(7);
+			ByteBuffer.wrap(buf).putInt(-8);
+			blockStore.writeBlock(8, buf);
+			blockStore.commit();
+			ByteBuffer.wrap(buf).putInt(-9);
+			blockStore.writeBlock(9, buf);
+			blockStore.rollback();
+			Assert.assertTrue(blockStore.log.position() > 0);
+			
+			// the last commits are only in the log
+			blockStore = new BlockStore(blockIO, logIO, 100);
+			Assert.assertEquals(0, blockStore.log.position()); // replayed and checkpointed
+			Assert.assertEquals(49, blockStore.itemsStored());
+			Assert.assertFalse(blockStore.hasBlock(7));
+			for (int i = 8; i <= 50; i++) {
+				blockStore.readBlock(i, buf);
+				Assert.assertEquals(i == 8 ? -8 : i, ByteBuffer.wrap(buf).getInt());
+			}
+			
+			// the log is checkpointed once it exceeds 100 blocks
+			for (int i = 0; i < 40; i++) {
+				blockStore.writeBlock(10, buf);
+				blockStore.commit();
+				Assert.assertTrue(blockStore.log.position() < 100);
+			}
+		}
 		
 	}
 	
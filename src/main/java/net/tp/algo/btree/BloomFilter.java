@@ -0,0 +1,173 @@
+package net.tp.algo.btree;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Blocked Bloom filter of keys, stored in consecutive blocks of a {@link BlockStore}. All the bits of a key are in one
+ * block, chosen by its hash, so that adding a key changes a single block; {@link #flush()} writes the changed blocks.
+ * A block is read the first time it is used, and the blocks of a new filter are allocated by its first flush.
+ *
+ * Bits are never cleared, so a deleted key stays in the filter until the filter is rebuilt, see {@link #stale()}. Keys are
+ * hashed by their serialized form: keys which are equal by the comparator of the tree must serialize to the same bytes.
+ *
+ * @author Trung Phan
+ *
+ */
+class BloomFilter<K> {
+
+	private final BlockStore bs;
+	private final Serializer<K> serializer;
+	private final int bitsPerKey;
+	private final int capacity; // number of keys the filter is sized for
+	private final int hashes;
+	private int firstBlock; // 0 until the first flush of a new filter
+	private final byte[][] blocks;
+	private final BitSet dirty = new BitSet(); // blocks to write
+	private final ByteBuffer scratch;
+	private int changes; // keys added or deleted since the filter was built
+
+	/**
+	 * Create an empty filter for capacity keys.
+	 */
+	public BloomFilter(BlockStore bs, Serializer<K> serializer, int bitsPerKey, int capacity) {
+		this(bs, serializer, bitsPerKey, capacity, 0, 0);
+	}
+
+	/**
+	 * Open the filter stored from block firstBlock, or create an empty one if firstBlock is 0.
+	 * @param changes keys added or deleted since the filter was built
+	 */
+	public BloomFilter(BlockStore bs, Serializer<K> serializer, int bitsPerKey, int capacity, int firstBlock, int changes) {
+		if (bitsPerKey <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.bs = bs;
+		this.serializer = serializer;
+		this.bitsPerKey = bitsPerKey;
+		this.capacity = capacity;
+		this.hashes = Math.max(1, (int)Math.round(bitsPerKey * Math.log(2)));
+		this.changes = changes;
+		this.scratch = ByteBuffer.allocate(bs.blocksize());
+
+		long blockBits = bs.blocksize() * 8L;
+		int n = (int)Math.max(1, ((long)capacity * bitsPerKey + blockBits - 1) / blockBits);
+		this.blocks = new byte[n][];
+		this.firstBlock = firstBlock;
+		if (firstBlock == 0) {
+			for (int i = 0; i < n; i++) {
+				blocks[i] = new byte[bs.blocksize()];
+			}
+			dirty.set(0, n);
+		}
+	}
+
+	public int bitsPerKey() {
+		return bitsPerKey;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public int firstBlock() {
+		return firstBlock;
+	}
+
+	public synchronized void add(K key) {
+		long h = hash(key);
+		int b = block(h);
+		byte[] block = load(b);
+		long bits = block.length * 8L;
+		int a = (int)h;
+		int step = (int)((h * 0x9E3779B97F4A7C15L) >>> 32) | 1;
+		for (int i = 0; i < hashes; i++) {
+			int bit = (int)(((a + i * step) & 0xFFFFFFFFL) % bits);
+			block[bit >>> 3] |= 1 << (bit & 7);
+		}
+		dirty.set(b);
+	}
+
+	/**
+	 * @return false if key was never added
+	 */
+	public synchronized boolean mightContain(K key) {
+		long h = hash(key);
+		byte[] block = load(block(h));
+		long bits = block.length * 8L;
+		int a = (int)h;
+		int step = (int)((h * 0x9E3779B97F4A7C15L) >>> 32) | 1;
+		for (int i = 0; i < hashes; i++) {
+			int bit = (int)(((a + i * step) & 0xFFFFFFFFL) % bits);
+			if ((block[bit >>> 3] & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Count a key added to or deleted from the tree.
+	 */
+	public synchronized void change() {
+		changes++;
+	}
+
+	/**
+	 * @return whether the filter should be rebuilt: a filter sized for twice the keys it is built with is full, or as many
+	 * stale keys as live ones, after that many changes.
+	 */
+	public synchronized boolean stale() {
+		return changes >= capacity / 2;
+	}
+
+	public synchronized void flush() {
+		if (firstBlock == 0) {
+			firstBlock = bs.allocateBlocks(blocks.length, 0);
+		}
+		for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+			bs.writeBlock(firstBlock + i, blocks[i]);
+		}
+		dirty.clear();
+	}
+
+	public synchronized void free() {
+		if (firstBlock == 0) {
+			return;
+		}
+		for (int i = 0; i < blocks.length; i++) {
+			bs.freeBlock(firstBlock + i);
+		}
+	}
+
+	private byte[] load(int b) {
+		if (blocks[b] == null) {
+			blocks[b] = new byte[bs.blocksize()];
+			bs.readBlock(firstBlock + b, blocks[b]);
+		}
+		return blocks[b];
+	}
+
+	private int block(long h) {
+		return (int)(((h >>> 32) * blocks.length) >>> 32);
+	}
+
+	/**
+	 * FNV-1a of the serialized key, mixed by the finalizer of MurmurHash3.
+	 */
+	private long hash(K key) {
+		scratch.clear();
+		serializer.write(scratch, key);
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < scratch.position(); i++) {
+			h ^= scratch.get(i) & 0xFF;
+			h *= 0x100000001B3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
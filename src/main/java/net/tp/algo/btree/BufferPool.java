@@ -0,0 +1,72 @@
+package net.tp.algo.btree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of block buffers, so that reading and writing nodes does not allocate a new buffer for each block.
+ *
+ * The buffers are heap ByteBuffers whose backing array has the block size: {@link BlockIO} reads and writes byte
+ * arrays, and {@link Serializer} works on the ByteBuffer. A buffer returned by {@link #acquire()} is cleared but not
+ * zeroed. At most maxPooled released buffers are kept; the others are left to the garbage collector.
+ *
+ * @author Trung Phan
+ *
+ */
+public class BufferPool {
+
+	public static final int DEFAULT_MAX_POOLED = 64;
+
+	private final int blocksize;
+	private final int maxPooled;
+	private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+	private long allocations;
+
+	public BufferPool(int blocksize) {
+		this(blocksize, DEFAULT_MAX_POOLED);
+	}
+
+	public BufferPool(int blocksize, int maxPooled) {
+		if (blocksize <= 0 || maxPooled < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.blocksize = blocksize;
+		this.maxPooled = maxPooled;
+	}
+
+	public int blocksize() {
+		return blocksize;
+	}
+
+	public synchronized ByteBuffer acquire() {
+		ByteBuffer bb = pool.poll();
+		if (bb == null) {
+			allocations++;
+			return ByteBuffer.allocate(blocksize);
+		}
+		bb.clear();
+		return bb;
+	}
+
+	/**
+	 * Return a buffer obtained from {@link #acquire()}. It must not be used afterward.
+	 * @param bb
+	 */
+	public synchronized void release(ByteBuffer bb) {
+		if (bb.capacity() != blocksize) {
+			throw new IllegalArgumentException();
+		}
+		if (pool.size() < maxPooled) {
+			pool.push(bb);
+		}
+	}
+
+	/**
+	 *
+	 * @return number of buffers allocated because the pool was empty
+	 */
+	public synchronized long allocations() {
+		return allocations;
+	}
+
+}
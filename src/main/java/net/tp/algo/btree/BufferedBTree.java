@@ -0,0 +1,790 @@
+package net.tp.algo.btree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.Assert;
+
+import net.tp.algo.util.NaturalComparator;
+
+import org.junit.Test;
+
+/**
+ * Write-optimized variant of {@link BTree} (a B<sup>&epsilon;</sup>-tree). Each inner node has a buffer of pending insert
+ * and delete messages next to its pivots. An insert or delete only adds a message to the buffer of the root. When a buffer
+ * overflows, the messages bound for the child which has the most of them are moved down in one batch, so that one block
+ * write carries many keys. find checks the buffers on the path from the root: the message for a key nearest to the root
+ * is the most recent one.
+ *
+ * Nodes are stored in a {@link BlockStore}, with the root address in block 1 like BTree, so that both can be compared on
+ * the same kind of file. A leaf holds up to leafOrder keys and an inner node up to fanout children and bufferCapacity
+ * messages, which must fit in a block. Nodes are not merged: a leaf which becomes empty is removed, unless it is the last
+ * child of its parent.
+ *
+ * Unlike {@link BTree#add(Object)}, insert and delete do not tell whether the key was in the tree, which would take the
+ * reads that the buffers avoid. There are no order statistics.
+ *
+ * @author Trung Phan
+ *
+ * @param <K>
+ */
+public class BufferedBTree<K> implements Iterable<K> {
+
+	private static final int CHECKSUM = 155;
+	private static final int HEADER_SIZE = 9; // checksum, isLeaf, number of keys
+
+	private final BlockStore bs;
+	private final Serializer<K> keySerializer;
+	private final Comparator<? super K> comparator;
+	private final int fanout;
+	private final int bufferCapacity;
+	private final int leafOrder;
+	private final BlockCache<Node> cache;
+
+	private Node root;
+	private final Map<Integer, Node> dirtyNodes = new LinkedHashMap<>(); // written once at commit, looked up before the cache
+	private boolean metaDataDirty = false;
+	private int maxDirtyNodes = BTree.DEFAULT_MAX_DIRTY_NODES;
+	private boolean inTransaction = false;
+	private int modCount; // invalidates iterators
+
+	public BufferedBTree(BlockIO blockIO, Serializer<K> keySerializer, Comparator<? super K> comparator, int fanout, int bufferCapacity, int leafOrder) {
+		this(new BlockStore(blockIO), keySerializer, comparator, fanout, bufferCapacity, leafOrder, (long)BTree.DEFAULT_CACHE_BLOCKS * blockIO.blocksize());
+	}
+
+	/**
+	 *
+	 * @param fanout maximum number of children of an inner node, at least 2
+	 * @param bufferCapacity maximum number of messages buffered in an inner node
+	 * @param leafOrder maximum number of keys in a leaf
+	 * @param cacheCapacity capacity of the node cache in bytes; 0 disables the cache.
+	 */
+	public BufferedBTree(BlockStore blockStore, Serializer<K> keySerializer, Comparator<? super K> comparator, int fanout, int bufferCapacity, int leafOrder, long cacheCapacity) {
+		if (fanout < 2 || bufferCapacity < 1 || leafOrder < 1) {
+			throw new IllegalArgumentException();
+		}
+		if (keySerializer instanceof FixedSizeSerializer) {
+			int keySize = ((FixedSizeSerializer<K>)keySerializer).size();
+			int leafSize = HEADER_SIZE + leafOrder * keySize;
+			int innerSize = HEADER_SIZE + (fanout - 1) * keySize + fanout * 4 + 4 + bufferCapacity * (1 + keySize);
+			if (Math.max(leafSize, innerSize) > blockStore.blocksize()) {
+				throw new IllegalArgumentException("Nodes do not fit in a block.");
+			}
+		}
+		this.bs = blockStore;
+		this.keySerializer = keySerializer;
+		this.comparator = comparator;
+		this.fanout = fanout;
+		this.bufferCapacity = bufferCapacity;
+		this.leafOrder = leafOrder;
+		this.cache = new BlockCache<>(blockStore.blocksize(), cacheCapacity);
+
+		readMetaData();
+	}
+
+	BlockStore blockStore() {
+		return bs;
+	}
+
+	/**
+	 * A transaction which changes more than maxDirtyNodes nodes writes them before it commits, to bound memory use.
+	 * @param maxDirtyNodes
+	 * @see BTree#setMaxDirtyNodes(int)
+	 */
+	public synchronized void setMaxDirtyNodes(int maxDirtyNodes) {
+		if (maxDirtyNodes <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxDirtyNodes = maxDirtyNodes;
+	}
+
+	/**
+	 * Start a transaction. Until {@link #commit()} or {@link #rollback()}, insert and delete are applied without
+	 * committing the block store. A failed insert or delete rolls back and ends the transaction.
+	 */
+	public synchronized void begin() {
+		if (inTransaction) {
+			throw new IllegalStateException("Transaction already started.");
+		}
+		inTransaction = true;
+	}
+
+	public synchronized void commit() {
+		if (!inTransaction) {
+			throw new IllegalStateException("No transaction.");
+		}
+		inTransaction = false;
+		commitChanges();
+	}
+
+	public synchronized void rollback() {
+		if (!inTransaction) {
+			throw new IllegalStateException("No transaction.");
+		}
+		abort();
+	}
+
+	public synchronized boolean inTransaction() {
+		return inTransaction;
+	}
+
+	/**
+	 * Insert key, or replace the key equal to it. Committed unless in a transaction.
+	 * @param key
+	 */
+	public synchronized void insert(K key) {
+		if (key == null) {
+			throw new IllegalArgumentException("Key cannot be null.");
+		}
+		update(new Message<K>(key, false));
+	}
+
+	/**
+	 * Delete the key equal to key, if any. Committed unless in a transaction.
+	 * @param key
+	 */
+	public synchronized void delete(K key) {
+		if (key == null) {
+			throw new IllegalArgumentException("Key cannot be null.");
+		}
+		update(new Message<K>(key, true));
+	}
+
+	public synchronized K find(K key) {
+		Node u = root;
+		while (u != null) {
+			if (u.isLeaf) {
+				int pos = Collections.binarySearch(u.keys, key, comparator);
+				return pos >= 0 ? u.keys.get(pos) : null;
+			}
+			int pos = lowerBound(u.buffer, key);
+			if (pos < u.buffer.size() && comparator.compare(u.buffer.get(pos).key, key) == 0) {
+				Message<K> m = u.buffer.get(pos);
+				return m.delete ? null : m.key;
+			}
+			u = loadNode(u.children.get(u.childIndex(key)));
+		}
+		return null;
+	}
+
+	/**
+	 * Keys in ascending order, with the buffered messages applied. The iterator is invalidated by any insert or delete.
+	 */
+	@Override
+	public Iterator<K> iterator() {
+		return new Scan();
+	}
+
+	private void update(Message<K> m) {
+		modCount++;
+		try {
+			if (root == null) {
+				root = newNode(true, 0);
+				metaDataDirty = true;
+			}
+			if (root.isLeaf) {
+				List<K> keys = apply(root.keys, Collections.singletonList(m));
+				root.keys.clear();
+				root.keys.addAll(keys);
+			}
+			else {
+				int pos = lowerBound(root.buffer, m.key);
+				if (pos < root.buffer.size() && comparator.compare(root.buffer.get(pos).key, m.key) == 0) {
+					root.buffer.set(pos, m);
+				}
+				else {
+					root.buffer.add(pos, m);
+				}
+				while (root.buffer.size() > bufferCapacity) {
+					flushBuffer(root);
+				}
+			}
+			markDirty(root);
+			fixRoot();
+		} catch (RuntimeException e) {
+			abort();
+			throw e;
+		}
+
+		if (!inTransaction) {
+			commitChanges();
+		}
+		else if (dirtyNodes.size() > maxDirtyNodes) {
+			flush(); // between updates, when no node is over its capacity
+		}
+	}
+
+	/**
+	 * Move the messages bound for the child with the most of them into it, then flush the child if its buffer overflows,
+	 * and split it if it has too many keys or children.
+	 */
+	private void flushBuffer(Node u) {
+		int best = 0;
+		int bestFrom = 0;
+		int bestTo = 0;
+		for (int i = 0, from = 0; i < u.children.size(); i++) {
+			int to = i < u.keys.size() ? lowerBound(u.buffer, u.keys.get(i)) : u.buffer.size();
+			if (to - from > bestTo - bestFrom) {
+				best = i;
+				bestFrom = from;
+				bestTo = to;
+			}
+			from = to;
+		}
+		List<Message<K>> batch = u.buffer.subList(bestFrom, bestTo);
+		List<Message<K>> messages = new ArrayList<>(batch);
+		batch.clear();
+		markDirty(u);
+
+		Node c = loadNode(u.children.get(best));
+		if (c.isLeaf) {
+			List<K> keys = apply(c.keys, messages);
+			c.keys.clear();
+			c.keys.addAll(keys);
+		}
+		else {
+			List<Message<K>> buffer = merge(c.buffer, messages);
+			c.buffer.clear();
+			c.buffer.addAll(buffer);
+			while (c.buffer.size() > bufferCapacity) {
+				flushBuffer(c);
+			}
+		}
+		markDirty(c);
+
+		if (overfull(c)) {
+			split(u, best, c);
+		}
+		else if (c.isLeaf && c.keys.isEmpty() && u.children.size() > 1) {
+			u.children.remove(best);
+			u.keys.remove(best > 0 ? best - 1 : 0); // a neighbor takes over the range, which has no messages left
+			deleteNode(c);
+		}
+	}
+
+	/**
+	 * Split u, the child i of parent, into as few nodes as needed, of about the same size. u keeps the first part.
+	 */
+	private void split(Node parent, int i, Node u) {
+		int n = u.isLeaf ? u.keys.size() : u.children.size();
+		int max = u.isLeaf ? leafOrder : fanout;
+		int parts = (n + max - 1) / max;
+		for (int j = parts - 1; j > 0; j--) { // from the right, each new node goes right after u
+			int from = (int)((long)n * j / parts);
+			Node s = newNode(u.isLeaf, u.blockAddr);
+			K pivot;
+			if (u.isLeaf) {
+				moveTail(u.keys, from, s.keys);
+				pivot = s.keys.get(0);
+			}
+			else {
+				pivot = u.keys.get(from - 1);
+				moveTail(u.keys, from, s.keys);
+				u.keys.remove(from - 1);
+				moveTail(u.children, from, s.children);
+				moveTail(u.buffer, lowerBound(u.buffer, pivot), s.buffer);
+			}
+			parent.keys.add(i, pivot);
+			parent.children.add(i + 1, s.blockAddr);
+		}
+		markDirty(u);
+		markDirty(parent);
+	}
+
+	private static <T> void moveTail(List<T> from, int index, List<T> to) {
+		List<T> tail = from.subList(index, from.size());
+		to.addAll(tail);
+		tail.clear();
+	}
+
+	/**
+	 * Grow the tree while the root is over its capacity, shrink it while the root has a single child.
+	 */
+	private void fixRoot() {
+		while (true) {
+			if (overfull(root)) {
+				Node oldRoot = root;
+				root = newNode(false, oldRoot.blockAddr);
+				root.children.add(oldRoot.blockAddr);
+				cacheNode(oldRoot); // no longer pinned
+				split(root, 0, oldRoot);
+				metaDataDirty = true;
+			}
+			else if (!root.isLeaf && root.children.size() == 1) {
+				if (!root.buffer.isEmpty()) {
+					flushBuffer(root);
+				}
+				else {
+					Node oldRoot = root;
+					root = loadNode(oldRoot.children.get(0));
+					deleteNode(oldRoot);
+					cacheNode(root);
+					metaDataDirty = true;
+				}
+			}
+			else {
+				break;
+			}
+		}
+		if (root.isLeaf && root.keys.isEmpty()) {
+			deleteNode(root);
+			root = null;
+			metaDataDirty = true;
+		}
+	}
+
+	private boolean overfull(Node u) {
+		return u.isLeaf ? u.keys.size() > leafOrder : u.children.size() > fanout;
+	}
+
+	/**
+	 * @param keys sorted keys
+	 * @param messages sorted messages, more recent than the keys
+	 * @return the keys with the messages applied
+	 */
+	private List<K> apply(List<K> keys, List<Message<K>> messages) {
+		List<K> result = new ArrayList<>(keys.size() + messages.size());
+		int i = 0;
+		for (Message<K> m : messages) {
+			while (i < keys.size() && comparator.compare(keys.get(i), m.key) < 0) {
+				result.add(keys.get(i++));
+			}
+			if (i < keys.size() && comparator.compare(keys.get(i), m.key) == 0) {
+				i++; // replaced or deleted
+			}
+			if (!m.delete) {
+				result.add(m.key);
+			}
+		}
+		while (i < keys.size()) {
+			result.add(keys.get(i++));
+		}
+		return result;
+	}
+
+	/**
+	 * @param older sorted messages
+	 * @param newer sorted messages, which replace the older ones for the same key
+	 * @return sorted messages, one per key
+	 */
+	private List<Message<K>> merge(List<Message<K>> older, List<Message<K>> newer) {
+		List<Message<K>> result = new ArrayList<>(older.size() + newer.size());
+		int i = 0;
+		for (Message<K> m : newer) {
+			while (i < older.size() && comparator.compare(older.get(i).key, m.key) < 0) {
+				result.add(older.get(i++));
+			}
+			if (i < older.size() && comparator.compare(older.get(i).key, m.key) == 0) {
+				i++;
+			}
+			result.add(m);
+		}
+		while (i < older.size()) {
+			result.add(older.get(i++));
+		}
+		return result;
+	}
+
+	/**
+	 * @return index of the first message whose key is not less than key
+	 */
+	private int lowerBound(List<Message<K>> messages, K key) {
+		int lo = 0;
+		int hi = messages.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (comparator.compare(messages.get(mid).key, key) < 0) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private Node newNode(boolean isLeaf, int near) {
+		Node u = new Node(isLeaf);
+		u.blockAddr = bs.allocateBlocks(1, near); // written by the next flush
+		markDirty(u);
+		return u;
+	}
+
+	private void deleteNode(Node u) {
+		dirtyNodes.remove(u.blockAddr);
+		cache.remove(u.blockAddr);
+		bs.freeBlock(u.blockAddr);
+	}
+
+	private Node loadNode(int blockAddr) {
+		Node u = dirtyNodes.get(blockAddr);
+		if (u == null) {
+			u = cache.get(blockAddr);
+		}
+		if (u == null) {
+			u = readNode(blockAddr);
+			cacheNode(u);
+		}
+		return u;
+	}
+
+	private void cacheNode(Node u) {
+		cache.put(u.blockAddr, u, u == root);
+	}
+
+	private void markDirty(Node u) {
+		dirtyNodes.put(u.blockAddr, u);
+		cacheNode(u);
+	}
+
+	private Node readNode(int blockAddr) {
+		ByteBuffer bb = bs.bufferPool().acquire();
+		try {
+			bs.readBlock(blockAddr, bb.array());
+			if (bb.getInt() != CHECKSUM) {
+				throw new IllegalStateException("Data Store is corrupted");
+			}
+			Node u = new Node(bb.get() != 0);
+			u.blockAddr = blockAddr;
+			int n = bb.getInt();
+			for (int i = 0; i < n; i++) {
+				u.keys.add(keySerializer.read(bb));
+			}
+			if (!u.isLeaf) {
+				for (int i = 0; i <= n; i++) {
+					u.children.add(bb.getInt());
+				}
+				int m = bb.getInt();
+				for (int i = 0; i < m; i++) {
+					boolean delete = bb.get() != 0;
+					u.buffer.add(new Message<K>(keySerializer.read(bb), delete));
+				}
+			}
+			return u;
+		}
+		finally {
+			bs.bufferPool().release(bb);
+		}
+	}
+
+	private void writeNode(Node u) {
+		ByteBuffer bb = bs.bufferPool().acquire();
+		try {
+			bb.putInt(CHECKSUM);
+			bb.put(u.isLeaf ? (byte)1 : (byte)0);
+			bb.putInt(u.keys.size());
+			for (K key : u.keys) {
+				keySerializer.write(bb, key);
+			}
+			if (!u.isLeaf) {
+				for (int child : u.children) {
+					bb.putInt(child);
+				}
+				bb.putInt(u.buffer.size());
+				for (Message<K> m : u.buffer) {
+					bb.put(m.delete ? (byte)1 : (byte)0);
+					keySerializer.write(bb, m.key);
+				}
+			}
+			Arrays.fill(bb.array(), bb.position(), bb.capacity(), (byte)0);
+			bs.writeBlock(u.blockAddr, bb.array());
+		}
+		finally {
+			bs.bufferPool().release(bb);
+		}
+	}
+
+	/**
+	 * Write the changed nodes and metadata to the block store.
+	 */
+	private void flush() {
+		for (Node u : dirtyNodes.values()) {
+			writeNode(u);
+		}
+		dirtyNodes.clear();
+		if (metaDataDirty) {
+			writeMetaData();
+			metaDataDirty = false;
+		}
+	}
+
+	private void commitChanges() {
+		flush();
+		bs.commit();
+	}
+
+	private void abort() {
+		modCount++;
+		inTransaction = false;
+		dirtyNodes.clear();
+		metaDataDirty = false;
+		bs.rollback();
+		cache.clear();
+		root = null;
+		readMetaData();
+	}
+
+	private void readMetaData() {
+		byte[] buf = new byte[bs.blocksize()];
+		if (bs.hasBlock(1)) {
+			bs.readBlock(1, buf);
+		}
+		else {
+			int i = bs.placeBlock(buf);
+			if (i != 1) {
+				throw new IllegalStateException("DataStore is corrupted.");
+			}
+			bs.commit();
+		}
+
+		int ri = ByteBuffer.wrap(buf).getInt(); // rootIndex
+		if (ri > 0) {
+			root = readNode(ri);
+			cacheNode(root);
+		}
+	}
+
+	private void writeMetaData() {
+		ByteBuffer bb = bs.bufferPool().acquire();
+		try {
+			Arrays.fill(bb.array(), (byte)0);
+			bb.putInt(root != null ? root.blockAddr : 0);
+			bs.writeBlock(1, bb.array());
+		}
+		finally {
+			bs.bufferPool().release(bb);
+		}
+	}
+
+	/**
+	 * Pending insert of key, or delete of the key equal to key.
+	 */
+	private static class Message<K> {
+		private final K key;
+		private final boolean delete;
+
+		private Message(K key, boolean delete) {
+			this.key = key;
+			this.delete = delete;
+		}
+	}
+
+	private class Node {
+		private int blockAddr;
+		private final boolean isLeaf;
+		private final List<K> keys = new ArrayList<>(); // keys of a leaf, or pivots: child i holds the keys from pivot i-1 (inclusive) to pivot i
+		private final List<Integer> children;
+		private final List<Message<K>> buffer; // sorted, one message per key
+
+		private Node(boolean isLeaf) {
+			this.isLeaf = isLeaf;
+			this.children = isLeaf ? null : new ArrayList<Integer>();
+			this.buffer = isLeaf ? null : new ArrayList<Message<K>>();
+		}
+
+		/**
+		 * @return index of the child which holds key, i.e. the number of pivots less than or equal to key
+		 */
+		private int childIndex(K key) {
+			int lo = 0;
+			int hi = keys.size();
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (comparator.compare(keys.get(mid), key) <= 0) {
+					lo = mid + 1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * Depth first scan, which carries down the messages of the inner nodes on the path, and applies them to each leaf.
+	 */
+	private class Scan implements Iterator<K> {
+
+		private final List<Node> nodes = new ArrayList<>(); // inner nodes on the path
+		private final List<List<Message<K>>> messages = new ArrayList<>(); // for each of them, its messages and those above it
+		private final List<Integer> nextChild = new ArrayList<>();
+		private List<K> keys = Collections.emptyList(); // of the current leaf
+		private int index;
+		private final int expectedModCount;
+
+		private Scan() {
+			synchronized (BufferedBTree.this) {
+				expectedModCount = modCount;
+				if (root != null) {
+					enter(root, Collections.<Message<K>>emptyList());
+					advance();
+				}
+			}
+		}
+
+		private void enter(Node u, List<Message<K>> above) {
+			if (u.isLeaf) {
+				keys = apply(u.keys, above);
+				index = 0;
+			}
+			else {
+				nodes.add(u);
+				messages.add(merge(u.buffer, above));
+				nextChild.add(0);
+			}
+		}
+
+		private void advance() {
+			while (index >= keys.size() && !nodes.isEmpty()) {
+				int top = nodes.size() - 1;
+				Node u = nodes.get(top);
+				int i = nextChild.get(top);
+				if (i == u.children.size()) {
+					nodes.remove(top);
+					messages.remove(top);
+					nextChild.remove(top);
+					continue;
+				}
+				nextChild.set(top, i + 1);
+				List<Message<K>> m = messages.get(top);
+				int from = i == 0 ? 0 : lowerBound(m, u.keys.get(i - 1));
+				int to = i < u.keys.size() ? lowerBound(m, u.keys.get(i)) : m.size();
+				enter(loadNode(u.children.get(i)), m.subList(from, to));
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < keys.size();
+		}
+
+		@Override
+		public K next() {
+			synchronized (BufferedBTree.this) {
+				if (expectedModCount != modCount) {
+					throw new ConcurrentModificationException();
+				}
+				if (index >= keys.size()) {
+					throw new NoSuchElementException();
+				}
+				K key = keys.get(index++);
+				advance();
+				return key;
+			}
+		}
+	}
+
+	public static class TestCase {
+
+		@Test
+		public void random_test() {
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(100);
+			BufferedBTree<Integer> tree = new BufferedBTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 4, 6, 4);
+			TreeSet<Integer> expected = new TreeSet<>();
+			Random random = new Random(100);
+
+			for (int i = 0; i < 20000; i++) {
+				if (i % 500 == 0) {
+					tree.begin();
+				}
+				int key = random.nextInt(2000);
+				if (random.nextInt(5) < 2) {
+					expected.remove(key);
+					tree.delete(key);
+				}
+				else {
+					expected.add(key);
+					tree.insert(key);
+				}
+				int probe = random.nextInt(2000);
+				Assert.assertEquals(expected.contains(probe) ? Integer.valueOf(probe) : null, tree.find(probe));
+				if (i % 500 == 499) {
+					tree.commit();
+					Assert.assertEquals(new ArrayList<>(expected), toList(tree));
+				}
+			}
+
+			// a rolled back transaction leaves the tree as committed
+			tree.begin();
+			for (int i = 0; i < 2000; i++) {
+				tree.delete(i);
+			}
+			Assert.assertNull(tree.find(expected.first()));
+			tree.rollback();
+			Assert.assertEquals(new ArrayList<>(expected), toList(tree));
+
+			tree = new BufferedBTree<Integer>(blockIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 4, 6, 4);
+			Assert.assertEquals(new ArrayList<>(expected), toList(tree));
+
+			// empty leaves are removed, and the tree shrinks back to nothing
+			int stored = tree.bs.itemsStored();
+			for (int i = 0; i < 2000; i++) {
+				tree.delete(i);
+			}
+			Assert.assertEquals(Collections.emptyList(), toList(tree));
+			Assert.assertTrue(tree.bs.itemsStored() < stored);
+			tree.insert(1);
+			Assert.assertEquals(Arrays.asList(1), toList(tree));
+		}
+
+		@Test
+		public void write_test() {
+			final long[] writes = new long[2];
+			InMemoryBlockIO btreeIO = new InMemoryBlockIO(4096) {
+				@Override
+				public void writeBlock(int i, byte[] bytes) {
+					writes[0]++;
+					super.writeBlock(i, bytes);
+				}
+			};
+			InMemoryBlockIO bufferedIO = new InMemoryBlockIO(4096) {
+				@Override
+				public void writeBlock(int i, byte[] bytes) {
+					writes[1]++;
+					super.writeBlock(i, bytes);
+				}
+			};
+			BTree<Integer> btree = new BTree<Integer>(btreeIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 255, 127, 1000, 499);
+			BufferedBTree<Integer> buffered = new BufferedBTree<Integer>(bufferedIO, new IntegerSerializer(), new NaturalComparator<Integer>(), 16, 780, 1000);
+			btree.setMaxDirtyNodes(16);
+			buffered.setMaxDirtyNodes(16);
+
+			// random inserts in a transaction too large to keep the changed nodes in memory
+			int n = 200000;
+			Random random = new Random(100);
+			btree.begin();
+			buffered.begin();
+			for (int i = 0; i < n; i++) {
+				int key = random.nextInt();
+				btree.add(key);
+				buffered.insert(key);
+			}
+			btree.commit();
+			buffered.commit();
+
+			Assert.assertTrue(writes[1] < n / 4);
+			Assert.assertTrue(writes[1] * 4 < writes[0]);
+			Assert.assertEquals(toList(btree), toList(buffered));
+		}
+
+		private static <K> List<K> toList(Iterable<K> iterable) {
+			List<K> result = new ArrayList<>();
+			for (K key : iterable) {
+				result.add(key);
+			}
+			return result;
+		}
+	}
+}
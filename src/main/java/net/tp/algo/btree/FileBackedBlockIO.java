@@ -53,7 +53,7 @@ public class FileBackedBlockIO implements BlockIO, Closeable {
 		Arrays.fill(bytes, (byte)0);
 		ByteBuffer bb = ByteBuffer.wrap(bytes);
 		try {
-			fc.read(bb, i * blocksize);
+			fc.read(bb, (long)i * blocksize);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -73,7 +73,7 @@ public class FileBackedBlockIO implements BlockIO, Closeable {
 		}
 		ByteBuffer bb = ByteBuffer.wrap(buf);
 		try {
-			fc.write(bb, i * blocksize);
+			fc.write(bb, (long)i * blocksize);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -90,6 +90,16 @@ public class FileBackedBlockIO implements BlockIO, Closeable {
 	}
 
 
+	@Override
+	public void truncate(int blocks) {
+		try {
+			fc.truncate((long)blocks * blocksize);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
 	@Override
 	public void close() throws IOException {
 		try {
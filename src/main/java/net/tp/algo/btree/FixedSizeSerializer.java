@@ -0,0 +1,19 @@
+package net.tp.algo.btree;
+
+/**
+ * Serializer which always writes the same number of bytes, so that the i-th of a run of values can be read
+ * without reading the ones before it.
+ *
+ * @author Trung Phan
+ *
+ * @param <T>
+ */
+public interface FixedSizeSerializer<T> extends Serializer<T> {
+
+	/**
+	 * 
+	 * @return number of bytes written for each value, including null
+	 */
+	public int size();
+	
+}
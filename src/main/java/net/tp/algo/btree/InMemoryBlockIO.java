@@ -1,17 +1,37 @@
 package net.tp.algo.btree;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
 
+/**
+ * BlockIO kept in memory. Blocks are stored in fixed-size slabs, so reading or writing block i is O(1).
+ * With offHeap, slabs are direct ByteBuffers: the data does not live on the Java heap and does not add to GC work.
+ * Blocks can be read concurrently with the writes of other blocks.
+ *
+ * @author Trung Phan
+ *
+ */
 public class InMemoryBlockIO implements BlockIO {
 
+	private static final int SLAB_SIZE = 1 << 20; // 1MB
+
 	private final int blocksize;
-	private List<byte[]> blocks;
-	
+	private final int blocksPerSlab;
+	private final boolean offHeap;
+	private volatile ByteBuffer[] slabs; // replaced when it grows, while other threads may read
+
 	public InMemoryBlockIO(int blocksize) {
+		this(blocksize, false);
+	}
+
+	public InMemoryBlockIO(int blocksize, boolean offHeap) {
+		if (blocksize <= 0) {
+			throw new IllegalArgumentException();
+		}
 		this.blocksize = blocksize;
-		this.blocks = new LinkedList<>();
+		this.blocksPerSlab = Math.max(1, SLAB_SIZE / blocksize);
+		this.offHeap = offHeap;
+		this.slabs = new ByteBuffer[16];
 	}
 
 	@Override
@@ -21,36 +41,47 @@ public class InMemoryBlockIO implements BlockIO {
 
 	@Override
 	public void readBlock(int i, byte[] bytes) {
-		Arrays.fill(bytes, (byte)0);
-		if (i < blocks.size()) {
-			byte[] buf = blocks.get(i);
-			if (buf != null) {
-				System.arraycopy(buf, 0, bytes, 0, Math.min(buf.length, bytes.length));
-			}
+		int s = i / blocksPerSlab;
+		int len = Math.min(bytes.length, blocksize);
+		if (s < slabs.length && slabs[s] != null) {
+			ByteBuffer slab = slabs[s].duplicate();
+			slab.position((i % blocksPerSlab) * blocksize);
+			slab.get(bytes, 0, len);
+		}
+		else {
+			len = 0;
 		}
+		Arrays.fill(bytes, len, bytes.length, (byte)0);
 	}
 
 	@Override
 	public void writeBlock(int i, byte[] bytes) {
-		while (i >= blocks.size()) {
-			blocks.add(null);
+		int s = i / blocksPerSlab;
+		if (s >= slabs.length) {
+			slabs = Arrays.copyOf(slabs, Math.max(s + 1, slabs.length * 2));
 		}
-		
-		byte[] buf = blocks.get(i);
-		if (buf == null) {
-			buf = new byte[blocksize];
-			blocks.set(i, buf);
+		if (slabs[s] == null) {
+			slabs[s] = offHeap ? ByteBuffer.allocateDirect(blocksPerSlab * blocksize) : ByteBuffer.allocate(blocksPerSlab * blocksize);
+		}
+
+		ByteBuffer slab = slabs[s].duplicate();
+		slab.position((i % blocksPerSlab) * blocksize);
+		int len = Math.min(bytes.length, blocksize);
+		slab.put(bytes, 0, len);
+		for (int k = len; k < blocksize; k++) {
+			slab.put((byte)0);
 		}
-		Arrays.fill(buf, (byte)0);
-		System.arraycopy(bytes, 0, buf, 0, Math.min(bytes.length, buf.length));
-		
 	}
 
 	@Override
 	public void flush() {
 	}
-	
-	
-	
-	
+
+	@Override
+	public void truncate(int blocks) {
+		for (int s = (blocks + blocksPerSlab - 1) / blocksPerSlab; s < slabs.length; s++) {
+			slabs[s] = null;
+		}
+	}
+
 }
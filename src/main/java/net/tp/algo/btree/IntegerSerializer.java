@@ -2,7 +2,12 @@ package net.tp.algo.btree;
 
 import java.nio.ByteBuffer;
 
-public class IntegerSerializer implements Serializer<Integer> {
+public class IntegerSerializer implements FixedSizeSerializer<Integer> {
+
+	@Override
+	public int size() {
+		return 4;
+	}
 
 	@Override
 	public Integer read(ByteBuffer bb) {
@@ -0,0 +1,871 @@
+package net.tp.algo.btree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+
+import net.tp.algo.sort.MergeSort;
+import net.tp.algo.tree.BinaryHeap;
+import net.tp.algo.util.NaturalComparator;
+
+import org.junit.Test;
+
+/**
+ * Log-structured merge tree on a {@link BlockStore}, for write-mostly workloads such as keys which mostly arrive in
+ * ascending order.
+ *
+ * insert and delete append to an in-memory memtable, in arrival order. When the memtable is full, it is sorted with
+ * {@link MergeSort}, which is stable, so that the last change of a key wins. It is then written as an immutable sorted
+ * run: its data blocks, each placed right after the previous one so that the run is read sequentially, followed by an index
+ * of the first key and address of each block, and the last key of the run. These fence pointers are kept in memory, so a
+ * lookup in a run reads at most one block.
+ * The runs are listed in a manifest, whose address is in block 1.
+ *
+ * Compaction is tiered. Flushed runs go to level 0. Once a level has runsPerLevel runs, they are merged into one run of the
+ * next level by a k-way merge over a {@link BinaryHeap}. A delete is written as a tombstone, which is dropped once nothing
+ * older is left below it. find checks the memtable, then the runs from newest to oldest.
+ *
+ * The memtable is only durable once flushed, by {@link #flush()} or when it is full; there is no log.
+ *
+ * @author Trung Phan
+ *
+ * @param <K>
+ */
+public class LSMTree<K> implements Iterable<K> {
+
+	public static final int DEFAULT_MEMTABLE_SIZE = 64 * 1024;
+
+	public static final int DEFAULT_RUNS_PER_LEVEL = 4;
+
+	private final BlockStore bs;
+	private final Serializer<K> keySerializer;
+	private final Comparator<? super K> comparator;
+	private final Comparator<Entry<K>> entryComparator;
+	private final int memtableSize;
+	private final int runsPerLevel;
+	private final BlockCache<Entry<K>[]> cache; // decoded data blocks
+
+	private Entry<K>[] memtable;
+	private int memSize;
+	private int memSorted; // memtable[0..memSorted) is sorted, with one entry per key
+	private final List<List<Run>> levels = new ArrayList<>(); // the runs of each level, oldest first
+	private int manifestAddr;
+	private int manifestBlocks;
+	private boolean autoCompact = true;
+	private int modCount; // invalidates iterators
+	private int merges; // number of merges, after which iterators seek in the new runs
+
+	private final Object compaction = new Object(); // one merge at a time
+
+	public LSMTree(BlockIO blockIO, Serializer<K> keySerializer, Comparator<? super K> comparator) {
+		this(new BlockStore(blockIO), keySerializer, comparator, DEFAULT_MEMTABLE_SIZE, DEFAULT_RUNS_PER_LEVEL, (long)BTree.DEFAULT_CACHE_BLOCKS * blockIO.blocksize());
+	}
+
+	/**
+	 *
+	 * @param memtableSize number of changes kept in memory before they are written as a run
+	 * @param runsPerLevel number of runs of a level which are merged into the next level, at least 2
+	 * @param cacheCapacity capacity of the cache of data blocks in bytes; 0 disables the cache.
+	 */
+	public LSMTree(BlockStore blockStore, Serializer<K> keySerializer, final Comparator<? super K> comparator, int memtableSize, int runsPerLevel, long cacheCapacity) {
+		if (memtableSize <= 0 || runsPerLevel < 2) {
+			throw new IllegalArgumentException();
+		}
+		this.bs = blockStore;
+		this.keySerializer = keySerializer;
+		this.comparator = comparator;
+		this.entryComparator = new Comparator<Entry<K>>() {
+			@Override
+			public int compare(Entry<K> a, Entry<K> b) {
+				return comparator.compare(a.key, b.key);
+			}
+		};
+		this.memtableSize = memtableSize;
+		this.runsPerLevel = runsPerLevel;
+		this.cache = new BlockCache<>(blockStore.blocksize(), cacheCapacity);
+		this.memtable = newEntryArray(Math.min(memtableSize, 1024));
+
+		readManifest();
+	}
+
+	/**
+	 * By default, a flush merges the levels which are full before it returns. Without auto compaction, {@link #compact(int)}
+	 * is called by the application, e.g. from a background thread, and a flush only merges levels which have twice
+	 * runsPerLevel runs, to bound the number of runs a lookup reads.
+	 * @param autoCompact
+	 */
+	public synchronized void setAutoCompact(boolean autoCompact) {
+		this.autoCompact = autoCompact;
+	}
+
+	/**
+	 * Insert key, or replace the key equal to it.
+	 * @param key
+	 */
+	public void insert(K key) {
+		update(new Entry<K>(key, false));
+	}
+
+	/**
+	 * Delete the key equal to key, if any.
+	 * @param key
+	 */
+	public void delete(K key) {
+		update(new Entry<K>(key, true));
+	}
+
+	private void update(Entry<K> entry) {
+		if (entry.key == null) {
+			throw new IllegalArgumentException("Key cannot be null.");
+		}
+		synchronized (this) {
+			modCount++;
+			if (memSize == memtable.length) {
+				memtable = Arrays.copyOf(memtable, Math.min(memtableSize, memSize * 2));
+			}
+			if (memSorted == memSize && (memSize == 0 || comparator.compare(memtable[memSize - 1].key, entry.key) < 0)) {
+				memSorted++; // in ascending order, the memtable does not need to be sorted
+			}
+			memtable[memSize++] = entry;
+			if (memSize < memtableSize) {
+				return;
+			}
+			flushMemtable();
+		}
+		compactAfterFlush();
+	}
+
+	/**
+	 * Write the memtable as a run, and commit.
+	 */
+	public void flush() {
+		synchronized (this) {
+			flushMemtable();
+		}
+		compactAfterFlush();
+	}
+
+	private void flushMemtable() {
+		sortMemtable();
+		if (memSize == 0) {
+			return;
+		}
+		boolean empty = true;
+		for (List<Run> runs : levels) {
+			empty &= runs.isEmpty();
+		}
+
+		RunWriter writer = new RunWriter(0);
+		for (int i = 0; i < memSize; i++) {
+			if (!(empty && memtable[i].delete)) {
+				writer.add(memtable[i]);
+			}
+		}
+		Run run = writer.finish();
+		if (run != null) {
+			level(0).add(run);
+		}
+		writeManifest();
+		bs.commit();
+
+		memtable = newEntryArray(Math.min(memtableSize, 1024));
+		memSize = memSorted = 0;
+	}
+
+	private void compactAfterFlush() {
+		int maxRuns;
+		synchronized (this) {
+			maxRuns = autoCompact ? runsPerLevel : 2 * runsPerLevel;
+		}
+		while (fullLevel(maxRuns) >= 0) {
+			compact(1);
+		}
+	}
+
+	private synchronized int fullLevel(int maxRuns) {
+		for (int level = 0; level < levels.size(); level++) {
+			if (levels.get(level).size() >= maxRuns) {
+				return level;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Merge the runs of up to maxMerges levels which have runsPerLevel runs, from the top. The runs are merged without
+	 * holding the lock of the tree, so that writes and lookups go on meanwhile; they are only held up when the merged run
+	 * replaces its inputs. The blocks of a merge which does not complete, e.g. on a crash, stay allocated.
+	 * @param maxMerges
+	 * @return number of merges done, 0 if no level is full
+	 */
+	public int compact(int maxMerges) {
+		int result = 0;
+		synchronized (compaction) {
+			while (result < maxMerges) {
+				int level;
+				List<Run> inputs;
+				boolean bottom = true;
+				synchronized (this) {
+					level = fullLevel(runsPerLevel);
+					if (level < 0) {
+						break;
+					}
+					inputs = new ArrayList<>(levels.get(level));
+					for (int l = level + 1; l < levels.size(); l++) {
+						bottom &= levels.get(l).isEmpty();
+					}
+				}
+
+				// only compaction changes these runs, and the level below, so they can be read without the lock
+				List<Iterator<Entry<K>>> sources = new ArrayList<>();
+				for (int i = inputs.size() - 1; i >= 0; i--) {
+					sources.add(new RunIterator(inputs.get(i), false, null));
+				}
+				RunWriter writer = new RunWriter(level + 1);
+				for (Iterator<Entry<K>> i = new MergeIterator(sources); i.hasNext(); ) {
+					Entry<K> entry = i.next();
+					if (!(bottom && entry.delete)) {
+						writer.add(entry);
+					}
+				}
+				Run output = writer.finish();
+
+				synchronized (this) {
+					levels.get(level).subList(0, inputs.size()).clear(); // newer runs may have been flushed meanwhile
+					if (output != null) {
+						level(level + 1).add(output);
+					}
+					for (Run run : inputs) {
+						run.free();
+					}
+					writeManifest();
+					bs.commit();
+					merges++;
+				}
+				result++;
+			}
+		}
+		return result;
+	}
+
+	public synchronized K find(K key) {
+		sortMemtable();
+		int pos = Arrays.binarySearch(memtable, 0, memSize, new Entry<K>(key, false), entryComparator);
+		if (pos >= 0) {
+			return memtable[pos].delete ? null : memtable[pos].key;
+		}
+
+		for (List<Run> runs : levels) {
+			for (int i = runs.size() - 1; i >= 0; i--) {
+				Entry<K> entry = runs.get(i).find(key);
+				if (entry != null) {
+					return entry.delete ? null : entry.key;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Keys in ascending order. The iterator is invalidated by insert and delete. After a merge, which frees the runs it
+	 * reads, it seeks past its last key in the new runs.
+	 */
+	@Override
+	public synchronized Iterator<K> iterator() {
+		sortMemtable();
+		final Entry<K>[] mem = Arrays.copyOf(memtable, memSize);
+		final int expectedModCount = modCount;
+
+		return new Iterator<K>() {
+
+			private int expectedMerges = merges;
+			private MergeIterator merged = scan(mem, null);
+			private K nextKey = advance();
+
+			private K advance() {
+				while (merged.hasNext()) {
+					Entry<K> entry = merged.next();
+					if (!entry.delete) {
+						return entry.key;
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return nextKey != null;
+			}
+
+			@Override
+			public K next() {
+				synchronized (LSMTree.this) {
+					if (expectedModCount != modCount) {
+						throw new ConcurrentModificationException();
+					}
+					if (nextKey == null) {
+						throw new NoSuchElementException();
+					}
+					K result = nextKey;
+					if (expectedMerges != merges) {
+						expectedMerges = merges;
+						merged = scan(mem, result);
+					}
+					nextKey = advance();
+					return result;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Merge the memtable entries mem with the runs, from the first key greater than after.
+	 * @param after null to start from the first key
+	 */
+	private MergeIterator scan(Entry<K>[] mem, K after) {
+		int start = 0;
+		if (after != null) {
+			int pos = Arrays.binarySearch(mem, new Entry<K>(after, false), entryComparator);
+			start = pos >= 0 ? pos + 1 : -1 - pos;
+		}
+		List<Iterator<Entry<K>>> sources = new ArrayList<>();
+		sources.add(Arrays.asList(mem).subList(start, mem.length).iterator());
+		for (List<Run> runs : levels) {
+			for (int i = runs.size() - 1; i >= 0; i--) {
+				sources.add(new RunIterator(runs.get(i), true, after));
+			}
+		}
+		return new MergeIterator(sources);
+	}
+
+	/**
+	 * Sort the memtable and keep the last change of each key.
+	 */
+	private void sortMemtable() {
+		if (memSorted == memSize) {
+			return;
+		}
+		Entry<K>[] sorted = Arrays.copyOf(memtable, memSize);
+		MergeSort.mergesort(sorted, entryComparator);
+		int n = 0;
+		for (Entry<K> entry : sorted) {
+			if (n > 0 && comparator.compare(memtable[n - 1].key, entry.key) == 0) {
+				memtable[n - 1] = entry;
+			}
+			else {
+				memtable[n++] = entry;
+			}
+		}
+		Arrays.fill(memtable, n, memSize, null);
+		memSize = memSorted = n;
+	}
+
+	private List<Run> level(int level) {
+		while (levels.size() <= level) {
+			levels.add(new ArrayList<Run>());
+		}
+		return levels.get(level);
+	}
+
+	private void readManifest() {
+		byte[] buf = new byte[bs.blocksize()];
+		if (bs.hasBlock(1)) {
+			bs.readBlock(1, buf);
+		}
+		else {
+			int i = bs.placeBlock(buf);
+			if (i != 1) {
+				throw new IllegalStateException("DataStore is corrupted.");
+			}
+			bs.commit();
+		}
+
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		manifestAddr = bb.getInt();
+		manifestBlocks = bb.getInt();
+		for (int k = 0; k < manifestBlocks; k++) {
+			ByteBuffer block = ByteBuffer.wrap(bs.readBlock(manifestAddr + k));
+			for (int count = block.getInt(); count > 0; count--) {
+				int level = block.getInt();
+				level(level).add(new Run(level, block.getInt(), block.getInt(), block.getInt()));
+			}
+		}
+	}
+
+	/**
+	 * Write the list of runs to new blocks, and their address to block 1.
+	 */
+	private void writeManifest() {
+		RecordWriter writer = new RecordWriter();
+		for (List<Run> runs : levels) {
+			for (Run run : runs) {
+				ByteBuffer record = writer.record();
+				record.putInt(run.level);
+				record.putInt(run.indexAddr);
+				record.putInt(run.indexBlocks);
+				record.putInt(run.entries);
+				writer.add();
+			}
+		}
+		for (int k = 0; k < manifestBlocks; k++) {
+			bs.freeBlock(manifestAddr + k);
+		}
+		manifestBlocks = writer.blocks.size();
+		manifestAddr = writer.write(manifestAddr);
+
+		ByteBuffer bb = ByteBuffer.allocate(bs.blocksize());
+		bb.putInt(manifestAddr);
+		bb.putInt(manifestBlocks);
+		bs.writeBlock(1, bb.array());
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <K> Entry<K>[] newEntryArray(int n) {
+		return new Entry[n];
+	}
+
+	/**
+	 * Change of a key in the memtable or in a run: the key to store, or a tombstone.
+	 */
+	private static class Entry<K> {
+		private final K key;
+		private final boolean delete;
+
+		private Entry(K key, boolean delete) {
+			this.key = key;
+			this.delete = delete;
+		}
+	}
+
+	/**
+	 * Immutable sorted run. Each data block starts with its number of entries, followed by the entries (tombstone flag and key).
+	 * The index blocks hold the address and first key of each data block, then the last key of the run.
+	 */
+	private class Run {
+		private final int level;
+		private final int indexAddr;
+		private final int indexBlocks;
+		private final int entries;
+		private final int[] blocks;
+		private final K[] fences; // first key of each block
+		private final K last;
+
+		@SuppressWarnings("unchecked")
+		private Run(int level, int indexAddr, int indexBlocks, int entries) {
+			this.level = level;
+			this.indexAddr = indexAddr;
+			this.indexBlocks = indexBlocks;
+			this.entries = entries;
+
+			List<Integer> blockList = new ArrayList<>();
+			List<K> fenceList = new ArrayList<>();
+			for (int k = 0; k < indexBlocks; k++) {
+				ByteBuffer bb = ByteBuffer.wrap(bs.readBlock(indexAddr + k));
+				for (int count = bb.getInt(); count > 0; count--) {
+					blockList.add(bb.getInt());
+					fenceList.add(keySerializer.read(bb));
+				}
+			}
+			this.last = fenceList.remove(fenceList.size() - 1);
+			this.blocks = new int[fenceList.size()];
+			for (int i = 0; i < blocks.length; i++) {
+				blocks[i] = blockList.get(i);
+			}
+			this.fences = fenceList.toArray((K[])new Object[fenceList.size()]);
+		}
+
+		/**
+		 * @return the entry of key, or null if the run does not have one
+		 */
+		private Entry<K> find(K key) {
+			if (comparator.compare(key, last) > 0) {
+				return null;
+			}
+			int pos = Arrays.binarySearch(fences, key, comparator);
+			int b = pos >= 0 ? pos : -2 - pos; // the last block whose first key is not greater than key
+			if (b < 0) {
+				return null;
+			}
+			Entry<K>[] block = readEntries(blocks[b], true);
+			pos = Arrays.binarySearch(block, new Entry<K>(key, false), entryComparator);
+			return pos >= 0 ? block[pos] : null;
+		}
+
+		private void free() {
+			for (int addr : blocks) {
+				bs.freeBlock(addr);
+				cache.remove(addr);
+			}
+			for (int k = 0; k < indexBlocks; k++) {
+				bs.freeBlock(indexAddr + k);
+			}
+		}
+	}
+
+	/**
+	 * @param cached whether to go through the cache, which is only used while holding the lock
+	 */
+	private Entry<K>[] readEntries(int addr, boolean cached) {
+		Entry<K>[] result = cached ? cache.get(addr) : null;
+		if (result != null) {
+			return result;
+		}
+		ByteBuffer bb = bs.bufferPool().acquire();
+		try {
+			bs.readBlock(addr, bb.array());
+			result = newEntryArray(bb.getInt());
+			for (int i = 0; i < result.length; i++) {
+				boolean delete = bb.get() != 0;
+				result[i] = new Entry<K>(keySerializer.read(bb), delete);
+			}
+		}
+		finally {
+			bs.bufferPool().release(bb);
+		}
+		if (cached) {
+			cache.put(addr, result, false);
+		}
+		return result;
+	}
+
+	private class RunIterator implements Iterator<Entry<K>> {
+		private final Run run;
+		private final boolean cached;
+		private int b = -1;
+		private Entry<K>[] block = newEntryArray(0);
+		private int i;
+
+		/**
+		 * @param after null to start from the first key, otherwise the iterator starts after it
+		 */
+		private RunIterator(Run run, boolean cached, K after) {
+			this.run = run;
+			this.cached = cached;
+			if (after != null) {
+				int pos = Arrays.binarySearch(run.fences, after, comparator);
+				b = pos >= 0 ? pos : -2 - pos;
+				if (b >= 0) {
+					block = readEntries(run.blocks[b], cached);
+					pos = Arrays.binarySearch(block, new Entry<K>(after, false), entryComparator);
+					i = pos >= 0 ? pos + 1 : -1 - pos;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (i == block.length && b + 1 < run.blocks.length) {
+				block = readEntries(run.blocks[++b], cached);
+				i = 0;
+			}
+			return i < block.length;
+		}
+
+		@Override
+		public Entry<K> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return block[i++];
+		}
+	}
+
+	/**
+	 * K-way merge of sorted sources, given from newest to oldest. Of the entries of a key, only the newest is returned.
+	 */
+	private class MergeIterator implements Iterator<Entry<K>> {
+
+		private final List<Iterator<Entry<K>>> sources;
+		private final BinaryHeap<Head> heap;
+		private K lastKey;
+
+		private MergeIterator(List<Iterator<Entry<K>>> sources) {
+			this.sources = sources;
+			this.heap = new BinaryHeap<>(new Comparator<Head>() {
+				@Override
+				public int compare(Head a, Head b) {
+					int c = comparator.compare(a.entry.key, b.entry.key);
+					return c != 0 ? c : Integer.compare(a.source, b.source);
+				}
+			});
+			for (int s = 0; s < sources.size(); s++) {
+				pull(s);
+			}
+			skipOlder();
+		}
+
+		private void pull(int source) {
+			Iterator<Entry<K>> i = sources.get(source);
+			if (i.hasNext()) {
+				heap.add(new Head(i.next(), source));
+			}
+		}
+
+		private void skipOlder() {
+			while (lastKey != null && !heap.empty() && comparator.compare(heap.head().entry.key, lastKey) == 0) {
+				pull(heap.removeHead().source);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !heap.empty();
+		}
+
+		@Override
+		public Entry<K> next() {
+			if (heap.empty()) {
+				throw new NoSuchElementException();
+			}
+			Head head = heap.removeHead();
+			pull(head.source);
+			lastKey = head.entry.key;
+			skipOlder();
+			return head.entry;
+		}
+
+		private class Head {
+			private final Entry<K> entry;
+			private final int source;
+
+			private Head(Entry<K> entry, int source) {
+				this.entry = entry;
+				this.source = source;
+			}
+		}
+	}
+
+	/**
+	 * Packs records into blocks, each starting with its number of records. A record is written into {@link #record()},
+	 * then added with {@link #add()}.
+	 */
+	private class RecordWriter {
+		private final List<ByteBuffer> blocks = new ArrayList<>();
+		private final ByteBuffer record = ByteBuffer.allocate(bs.blocksize() - 4);
+		private ByteBuffer block;
+		private int count;
+
+		private ByteBuffer record() {
+			record.clear();
+			return record;
+		}
+
+		/**
+		 * @return true if the record starts a new block
+		 */
+		private boolean add() {
+			boolean newBlock = block == null || block.remaining() < record.position();
+			if (newBlock) {
+				count = 0;
+				block = ByteBuffer.allocate(bs.blocksize());
+				block.putInt(0);
+				blocks.add(block);
+			}
+			block.put(record.array(), 0, record.position());
+			block.putInt(0, ++count);
+			return newBlock;
+		}
+
+		/**
+		 * Store the blocks in consecutive new blocks.
+		 * @param near
+		 * @return the address of the first block
+		 */
+		private int write(int near) {
+			if (blocks.isEmpty()) {
+				return 0;
+			}
+			int first = bs.allocateBlocks(blocks.size(), near);
+			for (int k = 0; k < blocks.size(); k++) {
+				bs.writeBlock(first + k, blocks.get(k).array());
+			}
+			return first;
+		}
+	}
+
+	/**
+	 * Writes the entries of a run, in ascending order, one data block at a time.
+	 */
+	private class RunWriter {
+		private final int level;
+		private final RecordWriter data = new RecordWriter();
+		private final RecordWriter index = new RecordWriter();
+		private K fence; // first key of the block being filled
+		private K last;
+		private int prev; // last data block written
+		private int entries;
+
+		private RunWriter(int level) {
+			this.level = level;
+		}
+
+		private void add(Entry<K> entry) {
+			ByteBuffer record = data.record();
+			record.put(entry.delete ? (byte)1 : (byte)0);
+			keySerializer.write(record, entry.key);
+			if (data.add()) {
+				if (entries > 0) {
+					writeBlock();
+				}
+				fence = entry.key;
+			}
+			last = entry.key;
+			entries++;
+		}
+
+		private void writeBlock() {
+			prev = bs.allocateBlocks(1, prev);
+			bs.writeBlock(prev, data.blocks.remove(0).array());
+			addFence(prev, fence);
+		}
+
+		private void addFence(int addr, K key) {
+			ByteBuffer record = index.record();
+			record.putInt(addr);
+			keySerializer.write(record, key);
+			index.add();
+		}
+
+		/**
+		 * @return the run, or null if it has no entries
+		 */
+		private Run finish() {
+			if (entries == 0) {
+				return null;
+			}
+			writeBlock();
+			addFence(0, last);
+			int indexAddr = index.write(prev);
+			return new Run(level, indexAddr, index.blocks.size(), entries);
+		}
+	}
+
+	public static class TestCase {
+
+		@Test
+		public void random_test() {
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(256);
+			LSMTree<Integer> tree = new LSMTree<Integer>(new BlockStore(blockIO), new IntegerSerializer(), new NaturalComparator<Integer>(), 100, 3, 256 * 16);
+			TreeSet<Integer> expected = new TreeSet<>();
+			Random random = new Random(100);
+
+			for (int i = 0; i < 20000; i++) {
+				int key = random.nextInt(3000);
+				if (random.nextInt(5) < 2) {
+					expected.remove(key);
+					tree.delete(key);
+				}
+				else {
+					expected.add(key);
+					tree.insert(key);
+				}
+				int probe = random.nextInt(3000);
+				Assert.assertEquals(expected.contains(probe) ? Integer.valueOf(probe) : null, tree.find(probe));
+				if (i % 1000 == 999) {
+					Assert.assertEquals(new ArrayList<>(expected), toList(tree));
+				}
+			}
+			for (List<?> runs : tree.levels) {
+				Assert.assertTrue(runs.size() < 3);
+			}
+
+			// flushed changes survive a reopen, the memtable does not
+			tree.flush();
+			tree.insert(-1);
+			tree = new LSMTree<Integer>(new BlockStore(blockIO), new IntegerSerializer(), new NaturalComparator<Integer>(), 100, 3, 256 * 16);
+			Assert.assertNull(tree.find(-1));
+			Assert.assertEquals(new ArrayList<>(expected), toList(tree));
+
+			// the tombstones are dropped once merged into the bottom level, then the runs are freed
+			int stored = tree.bs.itemsStored();
+			for (int key = 0; key < 3000; key++) {
+				tree.delete(key);
+			}
+			for (int round = 0; round < 1000 && entries(tree) > 100; round++) {
+				tree.insert(10000);
+				tree.flush();
+			}
+			Assert.assertTrue(entries(tree) <= 100);
+			Assert.assertEquals(Arrays.asList(10000), toList(tree));
+			Assert.assertTrue(tree.bs.itemsStored() < stored);
+		}
+
+		@Test
+		public void ascending_keys_test() {
+			InMemoryBlockIO blockIO = new InMemoryBlockIO(4096);
+			final LSMTree<Integer> tree = new LSMTree<Integer>(new BlockStore(blockIO), new IntegerSerializer(), new NaturalComparator<Integer>(), 10000, 4, 4096 * 64);
+			tree.setAutoCompact(false);
+
+			// a background thread merges while keys are appended
+			final AtomicBoolean done = new AtomicBoolean();
+			Thread compactor = new Thread() {
+				@Override
+				public void run() {
+					while (!done.get()) {
+						if (tree.compact(1) == 0) {
+							Thread.yield();
+						}
+					}
+				}
+			};
+			compactor.start();
+			int n = 300000;
+			for (int key = 0; key < n; key++) {
+				tree.insert(key);
+			}
+			tree.flush();
+			done.set(true);
+			try {
+				compactor.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			tree.compact(Integer.MAX_VALUE);
+
+			int runs = 0;
+			for (List<?> level : tree.levels) {
+				Assert.assertTrue(level.size() < 4);
+				runs += level.size();
+			}
+			Assert.assertTrue(runs < 10);
+			Random random = new Random(100);
+			for (int i = 0; i < 1000; i++) {
+				int key = random.nextInt(2 * n) - n / 2;
+				Assert.assertEquals(key >= 0 && key < n ? Integer.valueOf(key) : null, tree.find(key));
+			}
+			int expected = 0;
+			for (int key : tree) {
+				Assert.assertEquals(expected++, key);
+			}
+			Assert.assertEquals(n, expected);
+		}
+
+		private static int entries(LSMTree<Integer> tree) {
+			int result = 0;
+			for (List<LSMTree<Integer>.Run> runs : tree.levels) {
+				for (LSMTree<Integer>.Run run : runs) {
+					result += run.entries;
+				}
+			}
+			return result;
+		}
+
+		private static <K> List<K> toList(Iterable<K> iterable) {
+			List<K> result = new ArrayList<>();
+			for (K key : iterable) {
+				result.add(key);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package net.tp.algo.btree;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * BlockIO backed by a memory mapped file. The file is mapped in segments of segmentSize bytes, so files larger
+ * than 2GB are supported. Reads map the part of a segment which lies within the file, read-only. Writes map it
+ * read-write, growing the mapping (and the file) by doubling up to the segment size; the file is cut back to the
+ * written blocks when it is closed.
+ *
+ * @author Trung Phan
+ *
+ */
+public class MappedBlockIO implements BlockIO, Closeable {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 1 << 26; // 64MB
+
+	private final int blocksize;
+	private final int blocksPerSegment;
+	private final long segmentSize;
+	private RandomAccessFile raf;
+	private FileChannel fc;
+	private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private long length; // end of the last block written, in bytes; the file may be longer by the growth of a mapping
+
+	public MappedBlockIO(File file, int blocksize) {
+		this(file, blocksize, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 *
+	 * @param file
+	 * @param blocksize
+	 * @param segmentSize size of each mapped region in bytes; rounded down to a multiple of blocksize
+	 */
+	public MappedBlockIO(File file, int blocksize, int segmentSize) {
+		if (blocksize <= 0 || segmentSize < blocksize) {
+			throw new IllegalArgumentException();
+		}
+		this.blocksize = blocksize;
+		this.blocksPerSegment = segmentSize / blocksize;
+		this.segmentSize = (long)this.blocksPerSegment * blocksize;
+		try {
+			open(file);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void open(File file) throws IOException {
+		close();
+
+		if (!file.exists()) {
+			file.createNewFile();
+		}
+		this.raf = new RandomAccessFile(file, "rw");
+		this.fc = raf.getChannel();
+		this.length = fc.size();
+	}
+
+	@Override
+	public int blocksize() {
+		return blocksize;
+	}
+
+	@Override
+	public void readBlock(int i, byte[] bytes) {
+		ByteBuffer bb = segment(i, false);
+		if (bb == null) {
+			Arrays.fill(bytes, (byte)0);
+			return;
+		}
+
+		int pos = (i % blocksPerSegment) * blocksize;
+		int len = Math.max(0, Math.min(Math.min(bytes.length, blocksize), bb.limit() - pos)); // the last block of the file may be partial
+		bb.position(pos);
+		bb.get(bytes, 0, len);
+		if (len < bytes.length) {
+			Arrays.fill(bytes, len, bytes.length, (byte)0);
+		}
+	}
+
+	@Override
+	public void writeBlock(int i, byte[] bytes) {
+		if (bytes.length > blocksize) {
+			throw new IllegalStateException();
+		}
+
+		ByteBuffer bb = segment(i, true);
+		bb.position((i % blocksPerSegment) * blocksize);
+		bb.put(bytes);
+		for (int k = bytes.length; k < blocksize; k++) {
+			bb.put((byte)0);
+		}
+	}
+
+	/**
+	 * A mapping which is replaced by a larger one is not unmapped, since another thread may still read from a view
+	 * of it; it is released when it is garbage collected.
+	 *
+	 * @param i block index
+	 * @param write map block i read-write, extending the file if needed
+	 * @return a private view of the segment containing block i, or null if it is beyond the end of file
+	 */
+	private synchronized ByteBuffer segment(int i, boolean write) {
+		int s = i / blocksPerSegment;
+		long offset = s * segmentSize;
+		long end = (long)(i + 1) * blocksize - offset; // end of block i within the segment
+		MappedByteBuffer segment = s < segments.length ? segments[s] : null;
+		if (segment == null || segment.capacity() < end || write && segment.isReadOnly()) {
+			try {
+				long inFile = Math.max(0, Math.min(segmentSize, fc.size() - offset));
+				FileChannel.MapMode mode;
+				long size;
+				if (write) {
+					mode = FileChannel.MapMode.READ_WRITE;
+					size = Math.min(segmentSize, Math.max(Math.max(end, inFile), segment == null ? 0 : 2L * segment.capacity()));
+				}
+				else {
+					if (inFile <= end - blocksize) {
+						return null;
+					}
+					mode = segment == null || segment.isReadOnly() ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+					size = inFile;
+				}
+				if (s >= segments.length) {
+					segments = Arrays.copyOf(segments, Math.max(s + 1, segments.length * 2));
+				}
+				segment = segments[s] = fc.map(mode, offset, size);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if (write) {
+			length = Math.max(length, offset + end);
+		}
+		return segment.duplicate();
+	}
+
+	@Override
+	public synchronized void flush() {
+		for (MappedByteBuffer segment : segments) {
+			if (segment != null) {
+				segment.force();
+			}
+		}
+	}
+
+	/**
+	 * The mappings which extend beyond the new end of file are unmapped, so blocks must not be read or written
+	 * meanwhile.
+	 */
+	@Override
+	public synchronized void truncate(int blocks) {
+		long size = (long)blocks * blocksize;
+		for (int s = blocks / blocksPerSegment; s < segments.length; s++) {
+			if (segments[s] != null && s * segmentSize + segments[s].capacity() > size) {
+				unmap(segments[s]);
+				segments[s] = null;
+			}
+		}
+		length = Math.min(length, size);
+		try {
+			if (fc.size() > size) {
+				fc.truncate(size);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			for (MappedByteBuffer segment : segments) {
+				if (segment != null) {
+					segment.force();
+					unmap(segment);
+				}
+			}
+			segments = new MappedByteBuffer[0];
+			if (this.fc != null) {
+				if (this.fc.size() > length) {
+					this.fc.truncate(length);
+				}
+				this.fc.close();
+			}
+		}
+		finally {
+			this.fc = null;
+			if (this.raf != null) {
+				try {
+					this.raf.close();
+				} finally {
+					this.raf = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Release the mapping now instead of waiting for the buffer to be garbage collected. There is no public API
+	 * for this, so it goes through sun.misc.Unsafe if available and otherwise leaves it to the garbage collector.
+	 * @param bb
+	 */
+	private static void unmap(MappedByteBuffer bb) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(unsafe, bb);
+		} catch (Exception e) {
+			// not supported on this platform
+		}
+	}
+
+	public static class TestCase {
+
+		@Test
+		public void segments_test() throws IOException {
+			File file = File.createTempFile("mapped", ".db");
+			file.deleteOnExit();
+			byte[] buf = new byte[16];
+			ByteBuffer bb = ByteBuffer.wrap(buf);
+
+			try (MappedBlockIO blockIO = new MappedBlockIO(file, 16, 16 * 8)) { // 8 blocks per segment
+				for (int i = 0; i < 30; i++) {
+					bb.putInt(0, i + 1);
+					blockIO.writeBlock(i, buf);
+				}
+			}
+			Assert.assertEquals(30 * 16, file.length());
+
+			try (MappedBlockIO blockIO = new MappedBlockIO(file, 16, 16 * 8)) {
+				// reading does not extend the file
+				for (int i = 0; i < 40; i++) {
+					blockIO.readBlock(i, buf);
+					Assert.assertEquals(i < 30 ? i + 1 : 0, bb.getInt(0));
+				}
+				Assert.assertEquals(30 * 16, file.length());
+
+				// the file is cut in the middle of a segment
+				bb.putInt(0, -4);
+				blockIO.writeBlock(4, buf);
+				blockIO.truncate(19);
+				Assert.assertEquals(19 * 16, file.length());
+				blockIO.readBlock(18, buf);
+				Assert.assertEquals(19, bb.getInt(0));
+				blockIO.readBlock(19, buf);
+				Assert.assertEquals(0, bb.getInt(0));
+
+				bb.putInt(0, -22);
+				blockIO.writeBlock(21, buf);
+			}
+			Assert.assertEquals(22 * 16, file.length());
+
+			try (MappedBlockIO blockIO = new MappedBlockIO(file, 16, 16 * 8)) {
+				for (int i = 0; i < 22; i++) {
+					blockIO.readBlock(i, buf);
+					Assert.assertEquals(i == 4 ? -4 : i == 21 ? -22 : i < 19 ? i + 1 : 0, bb.getInt(0));
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+package net.tp.algo.btree;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Dense array of int indexed by a non-negative int, allocated in fixed-size pages. Entries which are not set are 0.
+ *
+ * {@link #snapshot()} shares the pages with the copy; a shared page is copied the first time either side writes to it.
+ * Taking a snapshot therefore costs O(number of pages) instead of O(number of entries).
+ *
+ * @author Trung Phan
+ *
+ */
+class PagedIntArray {
+
+	private final int pageSize;
+	private int[][] pages;
+	private boolean[] owned; // false if the page may be shared with a snapshot
+	private int size; // number of non-zero entries
+
+	public PagedIntArray(int pageSize) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.pageSize = pageSize;
+		this.pages = new int[16][];
+		this.owned = new boolean[16];
+	}
+
+	private PagedIntArray(PagedIntArray other) {
+		this.pageSize = other.pageSize;
+		this.pages = Arrays.copyOf(other.pages, other.pages.length);
+		this.owned = new boolean[other.pages.length];
+		this.size = other.size;
+	}
+
+	public int get(int i) {
+		int p = i / pageSize;
+		if (i < 0 || p >= pages.length || pages[p] == null) {
+			return 0;
+		}
+		return pages[p][i % pageSize];
+	}
+
+	/**
+	 *
+	 * @param i
+	 * @param value
+	 * @return old value
+	 */
+	public int set(int i, int value) {
+		if (i < 0) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		int p = i / pageSize;
+		if (p >= pages.length) {
+			if (value == 0) {
+				return 0;
+			}
+			int newLength = Math.max(pages.length * 2, p + 1);
+			pages = Arrays.copyOf(pages, newLength);
+			owned = Arrays.copyOf(owned, newLength);
+		}
+
+		int[] page = pages[p];
+		if (page == null) {
+			if (value == 0) {
+				return 0;
+			}
+			page = pages[p] = new int[pageSize];
+			owned[p] = true;
+		}
+		else if (!owned[p]) {
+			page = pages[p] = Arrays.copyOf(page, pageSize);
+			owned[p] = true;
+		}
+
+		int old = page[i % pageSize];
+		page[i % pageSize] = value;
+		if (old == 0 && value != 0) {
+			size++;
+		}
+		else if (old != 0 && value == 0) {
+			size--;
+		}
+		return old;
+	}
+
+	public int remove(int i) {
+		return set(i, 0);
+	}
+
+	public boolean contains(int i) {
+		return get(i) != 0;
+	}
+
+	/**
+	 *
+	 * @return number of non-zero entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @param from
+	 * @return the smallest index >= from which has a non-zero value, or -1 if there is none.
+	 */
+	public int next(int from) {
+		int p = Math.max(from, 0) / pageSize;
+		int j = Math.max(from, 0) % pageSize;
+		for (; p < pages.length; p++, j = 0) {
+			int[] page = pages[p];
+			if (page == null) {
+				continue;
+			}
+			for (; j < pageSize; j++) {
+				if (page[j] != 0) {
+					return p * pageSize + j;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return a copy of this array. Pages are shared and copied lazily on write.
+	 * @return
+	 */
+	public PagedIntArray snapshot() {
+		Arrays.fill(owned, false);
+		return new PagedIntArray(this);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof PagedIntArray)) {
+			return false;
+		}
+		PagedIntArray other = (PagedIntArray)obj;
+		if (size != other.size) {
+			return false;
+		}
+		for (int i = next(0); i >= 0; i = next(i + 1)) {
+			if (get(i) != other.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = 0;
+		for (int i = next(0); i >= 0; i = next(i + 1)) {
+			result += i ^ get(i);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder("{");
+		for (int i = next(0); i >= 0; i = next(i + 1)) {
+			if (result.length() > 1) {
+				result.append(", ");
+			}
+			result.append(i).append("=").append(get(i));
+		}
+		return result.append("}").toString();
+	}
+
+	public static class TestCase {
+
+		@Test
+		public void snapshot_test() {
+			Random random = new Random(1);
+			PagedIntArray array = new PagedIntArray(8);
+			Map<Integer, Integer> expected = new HashMap<>();
+			PagedIntArray snapshot = null;
+			Map<Integer, Integer> snapshotExpected = null;
+
+			for (int round = 0; round < 20; round++) {
+				for (int k = 0; k < 50; k++) {
+					int i = random.nextInt(200);
+					int value = random.nextInt(3) == 0 ? 0 : random.nextInt(1000) + 1;
+					Integer old = value == 0 ? expected.remove(i) : expected.put(i, value);
+					Assert.assertEquals(old == null ? 0 : old.intValue(), array.set(i, value));
+				}
+				check(expected, array);
+
+				// writes on either side are not seen by the other side
+				if (snapshot != null) {
+					check(snapshotExpected, snapshot);
+					int i = random.nextInt(200);
+					snapshot.set(i, -1);
+					snapshotExpected.put(i, -1);
+					check(snapshotExpected, snapshot);
+					check(expected, array);
+				}
+				snapshot = array.snapshot();
+				snapshotExpected = new HashMap<>(expected);
+				Assert.assertEquals(array, snapshot);
+			}
+		}
+
+		private static void check(Map<Integer, Integer> expected, PagedIntArray array) {
+			Assert.assertEquals(expected.size(), array.size());
+			int count = 0;
+			for (int i = array.next(0); i >= 0; i = array.next(i + 1)) {
+				Assert.assertEquals(expected.get(i).intValue(), array.get(i));
+				count++;
+			}
+			Assert.assertEquals(expected.size(), count);
+			for (int i = -1; i < 300; i++) {
+				Integer value = expected.get(i);
+				Assert.assertEquals(value == null ? 0 : value.intValue(), array.get(i));
+			}
+		}
+	}
+
+}
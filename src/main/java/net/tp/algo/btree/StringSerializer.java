@@ -0,0 +1,36 @@
+package net.tp.algo.btree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the length of the UTF-8 encoding, or -1 for null, followed by the encoding.
+ *
+ * @author Trung Phan
+ *
+ */
+public class StringSerializer implements Serializer<String> {
+
+	@Override
+	public String read(ByteBuffer bb) {
+		int length = bb.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		bb.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void write(ByteBuffer bb, String value) {
+		if (value == null) {
+			bb.putInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		bb.putInt(bytes.length);
+		bb.put(bytes);
+	}
+
+}
@@ -0,0 +1,167 @@
+package net.tp.algo.btree;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the transactions committed to a {@link BlockStore} since its last checkpoint.
+ *
+ * A record is written as consecutive blocks: a header (magic, generation, number of blocks, addrSeq, number of
+ * written and freed blocks, then their logical addresses, continued in as many blocks as needed), the image of each
+ * written block, and a trailer (magic, generation, number of blocks, CRC32 of the blocks before it). A record is
+ * valid only if its trailer matches, so a torn append is ignored. The generation is the generation of the checkpoint
+ * the record applies to; records of an older generation are stale.
+ *
+ * @author Trung Phan
+ *
+ */
+class WriteAheadLog {
+
+	private static final int MAGIC = 0x57414c31; // WAL1
+	private static final int HEADER_INTS = 6;
+
+	private final BlockIO logIO;
+	private int position;
+
+	public WriteAheadLog(BlockIO logIO) {
+		if (logIO.blocksize() < HEADER_INTS * 4) {
+			throw new IllegalArgumentException();
+		}
+		this.logIO = logIO;
+	}
+
+	/**
+	 *
+	 * @return number of blocks appended since the last reset
+	 */
+	public int position() {
+		return position;
+	}
+
+	/**
+	 * Start over at the beginning of the log. Only called once the records are checkpointed.
+	 */
+	public void reset() {
+		position = 0;
+	}
+
+	/**
+	 * Append a record and force it to the log.
+	 */
+	public void append(int generation, int addrSeq, int[] written, byte[][] images, int[] freed) {
+		int blocksize = logIO.blocksize();
+		int headerBlocks = headerBlocks(written.length + freed.length);
+		int blocks = headerBlocks + written.length + 1;
+
+		ByteBuffer header = ByteBuffer.allocate(headerBlocks * blocksize);
+		header.putInt(MAGIC).putInt(generation).putInt(blocks).putInt(addrSeq).putInt(written.length).putInt(freed.length);
+		for (int addr : written) {
+			header.putInt(addr);
+		}
+		for (int addr : freed) {
+			header.putInt(addr);
+		}
+
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[blocksize];
+		for (int k = 0; k < headerBlocks; k++) {
+			System.arraycopy(header.array(), k * blocksize, buf, 0, blocksize);
+			crc.update(buf);
+			logIO.writeBlock(position + k, buf);
+		}
+		for (int k = 0; k < written.length; k++) {
+			crc.update(images[k], 0, blocksize);
+			logIO.writeBlock(position + headerBlocks + k, images[k]);
+		}
+
+		byte[] trailer = new byte[blocksize];
+		ByteBuffer.wrap(trailer).putInt(MAGIC).putInt(generation).putInt(blocks).putInt((int)crc.getValue());
+		logIO.writeBlock(position + blocks - 1, trailer);
+
+		logIO.flush();
+		position += blocks;
+	}
+
+	/**
+	 * Read the record at the current position and move past it.
+	 * @param generation
+	 * @return the record, or null if there is no valid record of the given generation
+	 */
+	public Record next(int generation) {
+		int blocksize = logIO.blocksize();
+		byte[] buf = new byte[blocksize];
+		logIO.readBlock(position, buf);
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		if (bb.getInt() != MAGIC || bb.getInt() != generation) {
+			return null;
+		}
+		int blocks = bb.getInt();
+		int addrSeq = bb.getInt();
+		int writtenCount = bb.getInt();
+		int freedCount = bb.getInt();
+		if (writtenCount < 0 || freedCount < 0 || writtenCount + freedCount < 0) {
+			return null;
+		}
+		int headerBlocks = headerBlocks(writtenCount + freedCount);
+		if (blocks != headerBlocks + writtenCount + 1) {
+			return null;
+		}
+
+		byte[] trailer = new byte[blocksize];
+		logIO.readBlock(position + blocks - 1, trailer);
+		ByteBuffer tb = ByteBuffer.wrap(trailer);
+		if (tb.getInt() != MAGIC || tb.getInt() != generation || tb.getInt() != blocks) {
+			return null;
+		}
+		int expectedCrc = tb.getInt();
+
+		CRC32 crc = new CRC32();
+		ByteBuffer header = ByteBuffer.allocate(headerBlocks * blocksize);
+		for (int k = 0; k < headerBlocks; k++) {
+			logIO.readBlock(position + k, buf);
+			crc.update(buf);
+			header.put(buf);
+		}
+		Record record = new Record(addrSeq, writtenCount, freedCount);
+		for (int k = 0; k < writtenCount; k++) {
+			record.images[k] = new byte[blocksize];
+			logIO.readBlock(position + headerBlocks + k, record.images[k]);
+			crc.update(record.images[k]);
+		}
+		if ((int)crc.getValue() != expectedCrc) {
+			return null;
+		}
+
+		header.position(HEADER_INTS * 4);
+		for (int k = 0; k < writtenCount; k++) {
+			record.written[k] = header.getInt();
+		}
+		for (int k = 0; k < freedCount; k++) {
+			record.freed[k] = header.getInt();
+		}
+
+		position += blocks;
+		return record;
+	}
+
+	private int headerBlocks(int addrCount) {
+		long bytes = (HEADER_INTS + (long)addrCount) * 4;
+		return (int)((bytes + logIO.blocksize() - 1) / logIO.blocksize());
+	}
+
+	static class Record {
+
+		final int addrSeq;
+		final int[] written;
+		final byte[][] images;
+		final int[] freed;
+
+		private Record(int addrSeq, int writtenCount, int freedCount) {
+			this.addrSeq = addrSeq;
+			this.written = new int[writtenCount];
+			this.images = new byte[writtenCount][];
+			this.freed = new int[freedCount];
+		}
+	}
+
+}
@@ -1,5 +1,7 @@
 package net.tp.algo.sort;
 
+import java.util.Comparator;
+
 /**
  * User: Trung Phan
  * Date: 3/22/13
@@ -72,4 +74,60 @@ public class MergeSort {
             }
         }
     }
+
+    public static <T> void mergesort(T[] a, Comparator<? super T> c) {
+        mergesort(a, 0, a.length - 1, c);
+    }
+
+    private static <T> void mergesort(T[] a, int lo, int hi, Comparator<? super T> c) {
+        if (hi <= lo) {
+            return;
+        }
+
+        int mid = ((lo + hi) >>> 1) + 1;
+        mergesort(a, lo, mid-1, c);
+        mergesort(a, mid, hi, c);
+
+        merge(a, lo, mid, hi, c);
+    }
+
+    /**
+     * Merge 2 sub-array [lo,mid-1] and [mid,hi]. Stable: equal elements keep their order.
+     *
+     * @param a
+     * @param lo
+     * @param mid lo < mid <= hi
+     * @param hi
+     * @param c
+     */
+    private static <T> void merge(T[] a, int lo, int mid, int hi, Comparator<? super T> c) {
+        if (c.compare(a[mid-1], a[mid]) <= 0) {
+            return;
+        }
+
+        int bufLen = mid - lo;
+        Object[] buf = new Object[bufLen];
+        System.arraycopy(a, lo, buf, 0, bufLen);
+
+        int left = lo, right = mid;
+        for (int i = lo; i <= hi; i++) {
+            if (left == mid) {
+                break;
+            }
+            else if (right > hi) {
+                System.arraycopy(buf, left - lo, a, i, hi - i + 1);
+                break;
+            }
+
+            @SuppressWarnings("unchecked")
+            T l = (T)buf[left - lo];
+            if (c.compare(l, a[right]) <= 0) {
+                a[i] = l;
+                left++;
+            }
+            else {
+                a[i] = a[right++];
+            }
+        }
+    }
 }